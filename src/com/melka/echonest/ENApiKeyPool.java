@@ -0,0 +1,265 @@
+//
+// ENApiKeyPool.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads the requests of the library over several API keys, to add up their quotas.
+ *
+ * Once a pool is set with {@link ENNest#setApiKeyPool(ENApiKeyPool)}, each request
+ * uses the next healthy key in turn instead of the key of the track, and waits on the
+ * rate limiter of that key instead of the shared one. A key getting LIMIT_EXCEEDED is
+ * left out for a while, a key getting INVALID_KEY is left out for good. When all the
+ * valid keys are left out, requests wait for the first one to come back.
+ *
+ * The requests for a track uploaded by the library keep using the key that uploaded
+ * it, as long as that key is valid.
+ *
+ * @author melka
+ */
+public class ENApiKeyPool {
+
+	/**
+	 * Time a key is left out after a LIMIT_EXCEEDED response, in milliseconds.
+	 */
+	private static final long COOLDOWN = 60*1000;
+
+	/**
+	 * Number of track to key bindings remembered.
+	 */
+	private static final int MAX_BINDINGS = 10000;
+
+	private CopyOnWriteArrayList<Key> keys = new CopyOnWriteArrayList<Key>();
+	private AtomicInteger next = new AtomicInteger();
+	private Map<String, Key> bindings = Collections.synchronizedMap(new LinkedHashMap<String, Key>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<String, Key> eldest) {
+			return size() > MAX_BINDINGS;
+		}
+	});
+
+	/**
+	 * An API key of the pool, with its own rate limiter and health.
+	 */
+	public static class Key {
+		private String key;
+		private ENRateLimiter limiter;
+		private volatile long disabledUntil;
+		private volatile boolean invalid;
+		private AtomicLong requests = new AtomicLong();
+		private AtomicLong limitExceeded = new AtomicLong();
+
+		Key(String key, ENRateLimiter limiter) {
+			this.key = key;
+			this.limiter = limiter;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public ENRateLimiter getRateLimiter() {
+			return limiter;
+		}
+
+		/**
+		 * Tells if the key can be used now.
+		 *
+		 * @return false if the key is invalid or left out after LIMIT_EXCEEDED.
+		 */
+		public boolean isHealthy() {
+			return !invalid && System.currentTimeMillis() >= disabledUntil;
+		}
+
+		public boolean isInvalid() {
+			return invalid;
+		}
+
+		public long getRequestCount() {
+			return requests.get();
+		}
+
+		public long getLimitExceededCount() {
+			return limitExceeded.get();
+		}
+
+		/**
+		 * Updates the health of the key with the return code of a response.
+		 *
+		 * @param code The Echo Nest return code.
+		 */
+		void report(int code) {
+			requests.incrementAndGet();
+			limiter.onResponse(code);
+			if (code == ENNest.LIMIT_EXCEEDED) {
+				limitExceeded.incrementAndGet();
+				disabledUntil = System.currentTimeMillis()+COOLDOWN;
+			} else if (code == ENNest.INVALID_KEY && !invalid) {
+				invalid = true;
+				System.err.println(">> INVALID KEY "+this+" REMOVED FROM THE POOL");
+			}
+		}
+
+		public String toString() {
+			return key.length() > 4 ? key.substring(0, 4)+"..." : key;
+		}
+	}
+
+	/**
+	 * Initializes a pool.
+	 *
+	 * @param apiKeys The API keys, each limited to 2 requests per second.
+	 */
+	public ENApiKeyPool(String... apiKeys) {
+		for (int i=0;i<apiKeys.length;i++) {
+			add(apiKeys[i]);
+		}
+	}
+
+	/**
+	 * Adds a key limited to 2 requests per second, the default quota.
+	 *
+	 * @param apiKey An Echo Nest API key.
+	 */
+	public void add(String apiKey) {
+		add(apiKey, new ENRateLimiter(2, ENTrack.FEATURE_COUNT));
+	}
+
+	/**
+	 * Adds a key with its own rate limiter.
+	 *
+	 * @param apiKey An Echo Nest API key.
+	 * @param limiter The rate limiter matching the quota of the key.
+	 */
+	public void add(String apiKey, ENRateLimiter limiter) {
+		keys.add(new Key(apiKey, limiter));
+	}
+
+	/**
+	 * Chooses the key for a request: the key bound to the track if there is one and
+	 * it is valid, else the next healthy key in turn.
+	 *
+	 * @param md5 MD5 hash of the track, may be null.
+	 * @return The key, or null if no key is healthy.
+	 */
+	public Key select(String md5) {
+		if (md5 != null) {
+			Key bound = bindings.get(md5);
+			if (bound != null && !bound.invalid) {
+				return bound;
+			}
+		}
+		int n = keys.size();
+		for (int i=0;i<n;i++) {
+			Key k = keys.get((next.getAndIncrement() & Integer.MAX_VALUE) % n);
+			if (k.isHealthy()) {
+				return k;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Chooses the key for a request like {@link #select(String)}, waiting for the
+	 * first key to come back when all the valid keys are left out after LIMIT_EXCEEDED.
+	 *
+	 * @param md5 MD5 hash of the track, may be null.
+	 * @return The key, or null if all the keys are invalid.
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public Key await(String md5) throws InterruptedException {
+		while (true) {
+			Key k = select(md5);
+			if (k != null) {
+				return k;
+			}
+			long until = Long.MAX_VALUE;
+			for (int i=0;i<keys.size();i++) {
+				Key key = keys.get(i);
+				if (!key.invalid && key.disabledUntil < until) {
+					until = key.disabledUntil;
+				}
+			}
+			if (until == Long.MAX_VALUE) {
+				return null;
+			}
+			long wait = until-System.currentTimeMillis();
+			if (wait > 0) {
+				Thread.sleep(wait);
+			}
+		}
+	}
+
+	/**
+	 * Binds a track to a key, ie: the key that uploaded it.
+	 *
+	 * @param md5 MD5 hash of the track.
+	 * @param key The key to use for the requests of the track.
+	 */
+	public void bind(String md5, Key key) {
+		bindings.put(md5, key);
+	}
+
+	/**
+	 * Returns the keys of the pool, including the invalid ones.
+	 *
+	 * @return An unmodifiable list of keys.
+	 */
+	public List<Key> getKeys() {
+		return Collections.unmodifiableList(keys);
+	}
+
+	/**
+	 * Returns the number of keys that can be used now.
+	 *
+	 * @return Number of healthy keys.
+	 */
+	public int getHealthyCount() {
+		int n = 0;
+		for (int i=0;i<keys.size();i++) {
+			if (keys.get(i).isHealthy()) n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the number of keys that are not invalid, including the ones left out
+	 * after LIMIT_EXCEEDED.
+	 *
+	 * @return Number of valid keys.
+	 */
+	public int getValidCount() {
+		int n = 0;
+		for (int i=0;i<keys.size();i++) {
+			if (!keys.get(i).invalid) n++;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,199 @@
+//
+// ENBeatSync.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package com.melka.echonest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Resamples the pitches (chroma) and timbres of the segments of a track onto its
+ * beats, bars, tatums or sections.
+ *
+ * The values of an element are the average of the segments overlapping it, weighted
+ * by the duration of the overlap. Segments and elements are both sorted by time, so
+ * all the elements are computed in a single pass over the segment columns of the
+ * {@link ENSegmentStore}, without creating ENSegment objects.
+ *
+ * Results are flat arrays of 12 values per element: the values of element i are in
+ * result[i*12] to result[i*12+11]. Use {@link #toMatrix(float[])} to get a
+ * float[elements][12] array.
+ *
+ * <pre>
+ * float[] chroma = ENBeatSync.pitches(track, ENTrack.FEATURE_BEATS);
+ * </pre>
+ *
+ * @author melka
+ */
+public final class ENBeatSync {
+
+	private static final int D = ENSegmentStore.DIMENSIONS;
+
+	private ENBeatSync() {
+	}
+
+	/**
+	 * Averages the pitches of the segments over each element of a list.
+	 *
+	 * @param track The track. Its lists and segments are loaded if needed.
+	 * @param grid FEATURE_BEATS, FEATURE_BARS, FEATURE_TATUMS or FEATURE_SECTIONS.
+	 * @return 12 values per element, 0 for elements without segments. null if the
+	 * segments cannot be loaded.
+	 */
+	public static float[] pitches(ENTrack track, int grid) {
+		ENSegmentStore store = track.getSegmentStore();
+		if (store == null) return null;
+		return resample(store, store.getPitches(), track.getTimeline(), grid);
+	}
+
+	/**
+	 * Averages the timbres of the segments over each element of a list.
+	 *
+	 * @param track The track. Its lists and segments are loaded if needed.
+	 * @param grid FEATURE_BEATS, FEATURE_BARS, FEATURE_TATUMS or FEATURE_SECTIONS.
+	 * @return 12 values per element, 0 for elements without segments. null if the
+	 * segments cannot be loaded.
+	 */
+	public static float[] timbres(ENTrack track, int grid) {
+		ENSegmentStore store = track.getSegmentStore();
+		if (store == null) return null;
+		return resample(store, store.getTimbres(), track.getTimeline(), grid);
+	}
+
+	/**
+	 * Averages the pitches of several tracks, in parallel.
+	 *
+	 * @param tracks The tracks.
+	 * @param grid FEATURE_BEATS, FEATURE_BARS, FEATURE_TATUMS or FEATURE_SECTIONS.
+	 * @param executor Runs one task per track, or null to compute them one after the other.
+	 * @return The result of {@link #pitches(ENTrack, int)} for each track.
+	 */
+	public static float[][] pitches(ENTrack[] tracks, int grid, ExecutorService executor) {
+		return resample(tracks, grid, true, executor);
+	}
+
+	/**
+	 * Averages the timbres of several tracks, in parallel.
+	 *
+	 * @param tracks The tracks.
+	 * @param grid FEATURE_BEATS, FEATURE_BARS, FEATURE_TATUMS or FEATURE_SECTIONS.
+	 * @param executor Runs one task per track, or null to compute them one after the other.
+	 * @return The result of {@link #timbres(ENTrack, int)} for each track.
+	 */
+	public static float[][] timbres(ENTrack[] tracks, int grid, ExecutorService executor) {
+		return resample(tracks, grid, false, executor);
+	}
+
+	/**
+	 * Splits a flat result into one array of 12 values per element.
+	 *
+	 * @param flat A result of pitches() or timbres().
+	 * @return A float[elements][12] array.
+	 */
+	public static float[][] toMatrix(float[] flat) {
+		float[][] matrix = new float[flat.length/D][D];
+		for (int i=0;i<matrix.length;i++) {
+			System.arraycopy(flat, i*D, matrix[i], 0, D);
+		}
+		return matrix;
+	}
+
+	private static float[][] resample(ENTrack[] tracks, final int grid, final boolean pitches, ExecutorService executor) {
+		float[][] results = new float[tracks.length][];
+		if (executor == null) {
+			for (int i=0;i<tracks.length;i++) {
+				results[i] = pitches ? pitches(tracks[i], grid) : timbres(tracks[i], grid);
+			}
+			return results;
+		}
+		List<Future<float[]>> futures = new ArrayList<Future<float[]>>(tracks.length);
+		for (int i=0;i<tracks.length;i++) {
+			final ENTrack track = tracks[i];
+			futures.add(executor.submit(new Callable<float[]>() {
+				public float[] call() {
+					return pitches ? pitches(track, grid) : timbres(track, grid);
+				}
+			}));
+		}
+		for (int i=0;i<tracks.length;i++) {
+			try {
+				results[i] = futures.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return results;
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Computes the weighted averages in one pass: the first segment overlapping an
+	 * element is found from the first segment of the previous element.
+	 */
+	static float[] resample(ENSegmentStore store, float[] values, ENTimeline timeline, int grid) {
+		if (grid == ENTrack.FEATURE_SEGMENTS) {
+			throw new IllegalArgumentException("Segments cannot be resampled onto segments");
+		}
+		float[] cellStarts = timeline.getStarts(grid);
+		float[] cellEnds = timeline.getEnds(grid);
+		float[] segStarts = store.getStarts();
+		float[] segDurations = store.getDurations();
+		int n = store.size();
+		float[] result = new float[cellStarts.length*D];
+
+		int first = 0;
+		for (int c=0;c<cellStarts.length;c++) {
+			float from = cellStarts[c];
+			float to = cellEnds[c];
+			while (first < n && segStarts[first]+segDurations[first] <= from) {
+				first++;
+			}
+			int out = c*D;
+			float total = 0;
+			for (int s=first;s<n && segStarts[s] < to;s++) {
+				float start = segStarts[s];
+				float end = start+segDurations[s];
+				float w = (end < to ? end : to)-(start > from ? start : from);
+				if (w <= 0) continue;
+				int in = s*D;
+				for (int d=0;d<D;d++) {
+					result[out+d] += w*values[in+d];
+				}
+				total += w;
+			}
+			if (total > 0) {
+				float scale = 1/total;
+				for (int d=0;d<D;d++) {
+					result[out+d] *= scale;
+				}
+			}
+		}
+		return result;
+	}
+}
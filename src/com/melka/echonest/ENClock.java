@@ -0,0 +1,94 @@
+//
+// ENClock.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package com.melka.echonest;
+
+/**
+ * Position of the audio playing a track, followed by {@link ENScheduler}.
+ *
+ * Audio libraries usually report the position once per buffer, so it moves in
+ * steps of a few milliseconds: the scheduler smooths it with the system clock.
+ *
+ * With Minim:
+ * <pre>
+ * ENClock clock = new ENClock.Millis() {
+ *   public long millis() {
+ *     return player.position();
+ *   }
+ * };
+ * </pre>
+ *
+ * @author melka
+ */
+public interface ENClock {
+
+	/**
+	 * Returns the current position in the track.
+	 *
+	 * @return Position in seconds.
+	 */
+	public double getPosition();
+
+	/**
+	 * A clock reading a position in milliseconds.
+	 */
+	public static abstract class Millis implements ENClock {
+
+		/**
+		 * Returns the current position in the track.
+		 *
+		 * @return Position in milliseconds.
+		 */
+		public abstract long millis();
+
+		public double getPosition() {
+			return millis()/1000.0;
+		}
+	}
+
+	/**
+	 * A clock reading a position in samples, ie: the frame position of an audio line.
+	 */
+	public static abstract class Samples implements ENClock {
+
+		private double sampleRate;
+
+		/**
+		 * @param sampleRate Number of samples per second.
+		 */
+		public Samples(double sampleRate) {
+			this.sampleRate = sampleRate;
+		}
+
+		/**
+		 * Returns the current position in the track.
+		 *
+		 * @return Position in samples.
+		 */
+		public abstract long samples();
+
+		public double getPosition() {
+			return samples()/sampleRate;
+		}
+	}
+}
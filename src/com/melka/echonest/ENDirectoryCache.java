@@ -0,0 +1,341 @@
+//
+// ENDirectoryCache.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import processing.core.PApplet;
+
+/**
+ * Track cache keeping one .enp5 file per track and analysis version in a directory,
+ * named md5-vN.enp5.
+ *
+ * Files are written to a temporary file first and then renamed, so a crash never
+ * leaves a half-written analysis in the cache. When a maximum size is set, the least
+ * recently used tracks are deleted to stay under it. The last use of a track is kept
+ * as the modification date of its file, so the order survives restarts.
+ *
+ * A file cannot be replaced while a track still has it memory-mapped on Windows. The
+ * new file is then saved as md5-vN.enp5.new and replaces the old one on a later use.
+ *
+ * Files saved by older versions of the library, named md5.enp5, are renamed on
+ * first use if they hold the requested analysis version.
+ *
+ * @author melka
+ */
+public class ENDirectoryCache implements ENTrackCache {
+
+	private static final String EXTENSION = ".enp5";
+	private static final String PENDING = ".new";
+
+	private File root;
+	private long maxSize = Long.MAX_VALUE;
+
+	private LinkedHashMap<String, Long> entries;
+	private long size;
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Initializes a cache in the default directory (see {@link #defaultRoot()}).
+	 */
+	public ENDirectoryCache() {
+		this(defaultRoot());
+	}
+
+	/**
+	 * Initializes a cache in the given directory. It is created if needed.
+	 *
+	 * @param root The cache directory.
+	 */
+	public ENDirectoryCache(File root) {
+		this.root = root;
+	}
+
+	/**
+	 * Returns the default cache directory:
+	 * the "echonest.cache.dir" system property if set,
+	 * /Library/Application Support/Processing/EchoNest on Mac OS X,
+	 * %APPDATA%\Processing\EchoNest on Windows,
+	 * $XDG_CACHE_HOME/echonestp5 (or ~/.cache/echonestp5) elsewhere.
+	 *
+	 * @return The default cache directory.
+	 */
+	public static File defaultRoot() {
+		String dir = System.getProperty("echonest.cache.dir");
+		if (dir != null) {
+			return new File(dir);
+		}
+		String os = System.getProperty("os.name", "").toLowerCase();
+		if (os.startsWith("mac")) {
+			return new File("/Library/Application Support/Processing/EchoNest");
+		}
+		if (os.startsWith("windows")) {
+			String appData = System.getenv("APPDATA");
+			if (appData == null) appData = System.getProperty("user.home");
+			return new File(new File(appData, "Processing"), "EchoNest");
+		}
+		String cache = System.getenv("XDG_CACHE_HOME");
+		if (cache == null) cache = new File(System.getProperty("user.home"), ".cache").getPath();
+		return new File(cache, "echonestp5");
+	}
+
+	public ENTrack get(String md5, int analysisVersion, PApplet parent) {
+		String key = key(md5, analysisVersion);
+		File f = file(key);
+		File pending = pending(key);
+		synchronized (this) {
+			if (!getEntries().containsKey(key) && !f.exists() && !pending.exists()
+					&& !importLegacy(md5, analysisVersion)) {
+				misses.incrementAndGet();
+				return null;
+			}
+			if (pending.exists() && !replace(pending, f)) {
+				// the old file is still mapped, read the new one
+				f = pending;
+			}
+		}
+		try {
+			ENTrack track = ENTrackFile.open(f, parent);
+			hits.incrementAndGet();
+			touch(key, f);
+			return track;
+		} catch (IOException e) {
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	public boolean put(ENTrack track) {
+		String key = key(track.getTrackMD5(), track.getAnalysisVersion());
+		File f = file(key);
+		File tmp = null;
+		try {
+			root.mkdirs();
+			tmp = File.createTempFile(key, ".tmp", root);
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				BufferedOutputStream buffered = new BufferedOutputStream(out);
+				ENTrackFile.write(track, buffered);
+				buffered.flush();
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			File saved = f;
+			synchronized (this) {
+				if (!replace(tmp, f)) {
+					// the old file is still open, ie: memory-mapped by a track on Windows
+					saved = pending(key);
+					saved.delete();
+					if (!tmp.renameTo(saved)) {
+						throw new IOException("Cannot rename "+tmp+" to "+saved);
+					}
+				} else {
+					pending(key).delete();
+				}
+				tmp = null;
+				Long previous = getEntries().put(key, Long.valueOf(saved.length()));
+				if (previous != null) size -= previous.longValue();
+				size += saved.length();
+				evict(key);
+			}
+			return true;
+		} catch (IOException e) {
+			System.err.println(">> CANNOT SAVE ANALYSIS TO "+f);
+			e.printStackTrace();
+			return false;
+		} finally {
+			if (tmp != null) tmp.delete();
+		}
+	}
+
+	/**
+	 * Sets the maximum size of the cache. The least recently used tracks are deleted
+	 * when it is exceeded.
+	 *
+	 * @param bytes Maximum size in bytes.
+	 */
+	public synchronized void setMaxSize(long bytes) {
+		maxSize = bytes;
+		evict(null);
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Returns the current size of the cache.
+	 *
+	 * @return Size in bytes.
+	 */
+	public synchronized long getSize() {
+		getEntries();
+		return size;
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	private static String key(String md5, int analysisVersion) {
+		return md5+"-v"+analysisVersion;
+	}
+
+	private File file(String key) {
+		return new File(root, key+EXTENSION);
+	}
+
+	private File pending(String key) {
+		return new File(root, key+EXTENSION+PENDING);
+	}
+
+	/**
+	 * Renames a file over another one.
+	 *
+	 * @return false if the target exists and cannot be deleted.
+	 */
+	private static boolean replace(File from, File to) {
+		if (from.renameTo(to)) {
+			return true;
+		}
+		// Windows does not rename over an existing file
+		to.delete();
+		return from.renameTo(to);
+	}
+
+	/**
+	 * Renames a file saved under the old md5.enp5 name if it holds the requested
+	 * analysis version.
+	 *
+	 * @return true if the file has been imported.
+	 */
+	private boolean importLegacy(String md5, int analysisVersion) {
+		File legacy = file(md5);
+		if (!legacy.exists()) {
+			return false;
+		}
+		try {
+			ENTrack track = ENTrackFile.open(legacy, null);
+			if (track.getAnalysisVersion() != analysisVersion) {
+				return false;
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		String key = key(md5, analysisVersion);
+		if (!legacy.renameTo(file(key))) {
+			return false;
+		}
+		System.out.println(">> IMPORTED "+legacy.getName()+" AS "+key+EXTENSION);
+		long length = file(key).length();
+		if (getEntries().remove(md5) == null) size += length;
+		getEntries().put(key, Long.valueOf(length));
+		return true;
+	}
+
+	private synchronized void touch(String key, File f) {
+		if (!getEntries().containsKey(key)) {
+			getEntries().put(key, Long.valueOf(f.length()));
+			size += f.length();
+		} else {
+			getEntries().get(key);
+		}
+		f.setLastModified(System.currentTimeMillis());
+	}
+
+	/**
+	 * Deletes the least recently used files until the cache fits its maximum size.
+	 *
+	 * @param keep Key of the track being saved, never evicted. May be null.
+	 */
+	private void evict(String keep) {
+		Iterator<Map.Entry<String, Long>> it = getEntries().entrySet().iterator();
+		while (size > maxSize && it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+			if (eldest.getKey().equals(keep)) {
+				continue;
+			}
+			File f = file(eldest.getKey());
+			pending(eldest.getKey()).delete();
+			if (!f.delete() && f.exists()) {
+				// still open, ie: memory-mapped on Windows, tried again on the next eviction
+				continue;
+			}
+			size -= eldest.getValue().longValue();
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Lists the cache directory once, from the least to the most recently used file.
+	 */
+	private LinkedHashMap<String, Long> getEntries() {
+		if (entries == null) {
+			entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+			File[] files = root.listFiles();
+			if (files != null) {
+				Arrays.sort(files, new Comparator<File>() {
+					public int compare(File a, File b) {
+						long d = a.lastModified()-b.lastModified();
+						return d < 0 ? -1 : (d > 0 ? 1 : 0);
+					}
+				});
+				for (int i=0;i<files.length;i++) {
+					String name = files[i].getName();
+					if (name.endsWith(EXTENSION)) {
+						long length = files[i].length();
+						entries.put(name.substring(0, name.length()-EXTENSION.length()), Long.valueOf(length));
+						size += length;
+					}
+				}
+			}
+		}
+		return entries;
+	}
+}
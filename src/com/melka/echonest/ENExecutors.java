@@ -0,0 +1,165 @@
+//
+// ENExecutors.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executors used by the library to run its requests.
+ *
+ * When the Java runtime supports virtual threads (Java 21 and later), the executors
+ * built by {@link #newVirtualThreadExecutor(int)} run every task on its own virtual
+ * thread, so thousands of requests waiting for the network only cost a few carrier
+ * threads. On older runtimes they fall back to a pool of regular threads.
+ *
+ * @author melka
+ */
+public final class ENExecutors {
+
+	private static Method virtualFactory;
+	private static boolean virtualChecked = false;
+
+	private ENExecutors() {
+	}
+
+	/**
+	 * Returns a thread factory creating daemon threads, so a pool never keeps a sketch
+	 * from exiting.
+	 *
+	 * @param prefix Prefix of the thread names.
+	 * @return A new thread factory.
+	 */
+	public static ThreadFactory daemonThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+			private int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix+"-"+(count++));
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Tells if the runtime supports virtual threads.
+	 *
+	 * @return true on Java 21 and later.
+	 */
+	public static synchronized boolean isVirtualThreadAvailable() {
+		if (!virtualChecked) {
+			virtualChecked = true;
+			try {
+				virtualFactory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			} catch (NoSuchMethodException e) {
+				virtualFactory = null;
+			}
+		}
+		return virtualFactory != null;
+	}
+
+	/**
+	 * Creates an executor running each task on a virtual thread, with at most
+	 * maxConcurrency tasks running at the same time. Tasks over the limit wait on
+	 * their own virtual thread, which costs almost nothing.
+	 *
+	 * Without virtual threads, returns a pool of maxConcurrency daemon threads.
+	 *
+	 * @param maxConcurrency Maximum number of tasks running at the same time.
+	 * @return A new executor.
+	 */
+	public static ExecutorService newVirtualThreadExecutor(int maxConcurrency) {
+		if (isVirtualThreadAvailable()) {
+			try {
+				ExecutorService virtual = (ExecutorService) virtualFactory.invoke(null);
+				return new LimitedExecutor(virtual, maxConcurrency);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		return Executors.newFixedThreadPool(maxConcurrency, daemonThreadFactory("ENVirtualFallback"));
+	}
+
+	/**
+	 * Runs the tasks on another executor, at most a given number at the same time.
+	 */
+	private static class LimitedExecutor extends AbstractExecutorService {
+
+		private ExecutorService executor;
+		private Semaphore permits;
+
+		LimitedExecutor(ExecutorService executor, int maxConcurrency) {
+			this.executor = executor;
+			this.permits = new Semaphore(maxConcurrency, true);
+		}
+
+		public void execute(final Runnable command) {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						permits.acquire();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						// a task that does not run must not leave its callers waiting
+						if (command instanceof Future) {
+							((Future<?>) command).cancel(false);
+						}
+						return;
+					}
+					try {
+						command.run();
+					} finally {
+						permits.release();
+					}
+				}
+			});
+		}
+
+		public void shutdown() {
+			executor.shutdown();
+		}
+
+		public List<Runnable> shutdownNow() {
+			return executor.shutdownNow();
+		}
+
+		public boolean isShutdown() {
+			return executor.isShutdown();
+		}
+
+		public boolean isTerminated() {
+			return executor.isTerminated();
+		}
+
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return executor.awaitTermination(timeout, unit);
+		}
+	}
+}
@@ -0,0 +1,271 @@
+//
+// ENHashCache.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the MD5 hash of the audio files so they are not read again
+ * every time a sketch starts.
+ *
+ * Hashes are stored in a small text index, one line per file, with the canonical
+ * path, the size and the modification date of the file. A hash is reused as long
+ * as the size and the modification date of the file did not change.
+ *
+ * New hashes are appended to the index. It is rewritten with only the current
+ * hashes once the outdated lines outnumber them.
+ *
+ * @author melka
+ */
+public class ENHashCache {
+
+	private static ENHashCache defaultCache;
+
+	private File indexFile;
+	private HashMap<String, Entry> entries;
+	private int lines;
+	private boolean verify = false;
+
+	private static class Entry {
+		long size;
+		long modified;
+		String md5;
+
+		Entry(long size, long modified, String md5) {
+			this.size = size;
+			this.modified = modified;
+			this.md5 = md5;
+		}
+	}
+
+	/**
+	 * Initializes a hash cache stored in the given index file.
+	 *
+	 * @param indexFile The index file. Created on first write if it does not exist.
+	 */
+	public ENHashCache(File indexFile) {
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * Returns the hash cache used by the library, stored in the default cache
+	 * directory (see {@link ENDirectoryCache#defaultRoot()}).
+	 *
+	 * @return The default hash cache.
+	 */
+	public static synchronized ENHashCache getDefault() {
+		if (defaultCache == null) {
+			defaultCache = new ENHashCache(new File(ENDirectoryCache.defaultRoot(), "hashes.idx"));
+		}
+		return defaultCache;
+	}
+
+	/**
+	 * Replaces the hash cache used by the library.
+	 *
+	 * @param cache The new default hash cache.
+	 */
+	public static synchronized void setDefault(ENHashCache cache) {
+		defaultCache = cache;
+	}
+
+	/**
+	 * Returns the MD5 hash of a file, computing it only if the file is unknown or
+	 * has changed since it was last hashed.
+	 *
+	 * @param path Absolute path of the file.
+	 * @return The MD5 hash of the file.
+	 * @throws Exception
+	 */
+	public String hash(String path) throws Exception {
+		File f = new File(path);
+		String key = f.getCanonicalPath();
+		long size = f.length();
+		long modified = f.lastModified();
+		String known = null;
+		synchronized (this) {
+			Entry e = getEntries().get(key);
+			if (e != null && e.size == size && e.modified == modified) {
+				known = e.md5;
+			}
+		}
+		if (known != null && !verify) {
+			return known;
+		}
+		String md5 = ENNest.fileHash(path);
+		if (known != null && !known.equals(md5)) {
+			System.err.println(">> HASH CACHE WAS WRONG FOR "+key);
+		}
+		if (!md5.equals(known)) {
+			put(key, size, modified, md5);
+		}
+		return md5;
+	}
+
+	/**
+	 * Returns the stored MD5 hash of a file, without reading the file.
+	 *
+	 * @param path Absolute path of the file.
+	 * @return The MD5 hash, or null if the file is unknown or has changed.
+	 * @throws IOException
+	 */
+	public String lookup(String path) throws IOException {
+		File f = new File(path);
+		String key = f.getCanonicalPath();
+		long size = f.length();
+		long modified = f.lastModified();
+		synchronized (this) {
+			Entry e = getEntries().get(key);
+			if (e != null && e.size == size && e.modified == modified) {
+				return e.md5;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Records the MD5 hash of a file computed elsewhere.
+	 *
+	 * @param path Absolute path of the file.
+	 * @param md5 The MD5 hash of the file.
+	 * @throws IOException
+	 */
+	public void put(String path, String md5) throws IOException {
+		File f = new File(path);
+		put(f.getCanonicalPath(), f.length(), f.lastModified(), md5);
+	}
+
+	private synchronized void put(String key, long size, long modified, String md5) {
+		getEntries().put(key, new Entry(size, modified, md5));
+		if (lines+1-entries.size() > entries.size() && rewrite()) {
+			return;
+		}
+		Writer out = null;
+		try {
+			indexFile.getParentFile().mkdirs();
+			out = new FileWriter(indexFile, true);
+			write(out, key, entries.get(key));
+			lines++;
+		} catch (IOException e) {
+			System.err.println(">> CANNOT WRITE HASH CACHE "+indexFile);
+		} finally {
+			try {
+				if (out != null) out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void write(Writer out, String key, Entry e) throws IOException {
+		out.write(e.md5+"\t"+e.size+"\t"+e.modified+"\t"+key+"\n");
+	}
+
+	/**
+	 * Replaces the index with the current hashes only.
+	 *
+	 * @return false if the index could not be written.
+	 */
+	private boolean rewrite() {
+		File tmp = new File(indexFile.getPath()+".tmp");
+		Writer out = null;
+		try {
+			indexFile.getParentFile().mkdirs();
+			out = new FileWriter(tmp);
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				write(out, e.getKey(), e.getValue());
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(indexFile)) {
+				// renameTo does not replace an existing file on Windows
+				indexFile.delete();
+				if (!tmp.renameTo(indexFile)) {
+					throw new IOException("Cannot rename "+tmp);
+				}
+			}
+			lines = entries.size();
+			return true;
+		} catch (IOException e) {
+			System.err.println(">> CANNOT WRITE HASH CACHE "+indexFile);
+			tmp.delete();
+			return false;
+		} finally {
+			try {
+				if (out != null) out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private HashMap<String, Entry> getEntries() {
+		if (entries == null) {
+			entries = new HashMap<String, Entry>();
+			if (indexFile.exists()) {
+				BufferedReader in = null;
+				try {
+					in = new BufferedReader(new FileReader(indexFile));
+					String line;
+					while ((line = in.readLine()) != null) {
+						lines++;
+						String[] fields = line.split("\t", 4);
+						if (fields.length == 4) {
+							entries.put(fields[3], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+						}
+					}
+				} catch (Exception e) {
+					System.err.println(">> CANNOT READ HASH CACHE "+indexFile);
+				} finally {
+					try {
+						if (in != null) in.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * When verification is on, files are always hashed again and the index is
+	 * corrected if a stored hash does not match.
+	 *
+	 * @param verify true to check every stored hash.
+	 */
+	public void setVerify(boolean verify) {
+		this.verify = verify;
+	}
+
+	public boolean getVerify() {
+		return verify;
+	}
+}
@@ -0,0 +1,270 @@
+//
+// ENHierarchy.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+/**
+ * Links the tatums, beats, bars and sections of a track to each other, and the
+ * segments to the beats.
+ *
+ * Each tatum belongs to the last beat starting at or before it, each beat to a bar,
+ * each bar to a section and each segment to a beat (-1 if it starts before the first
+ * one). The children of a parent are contiguous, so "first beat of the bar" or "number
+ * of tatums in the beat" are single array reads.
+ *
+ * The tables are built in one pass over the lists and saved with the track in the
+ * .enp5 files (see {@link ENTrackFile}).
+ *
+ * @author melka
+ */
+public class ENHierarchy {
+
+	/**
+	 * A child starting this close before a parent belongs to that parent, in seconds.
+	 * Tatums and beats rarely share the exact same time.
+	 */
+	static final float EPSILON = 0.01f;
+
+	// parent of each child
+	int[] tatumBeat;
+	int[] beatBar;
+	int[] barSection;
+	int[] segmentBeat;
+
+	// children of parent p are in [x[p], x[p+1])
+	int[] beatTatums;
+	int[] barBeats;
+	int[] sectionBars;
+	int[] beatSegments;
+
+	/**
+	 * The timeline the tables were built from, null if they were read from a file.
+	 */
+	ENTimeline timeline;
+
+	/**
+	 * Builds the tables of a track, from its timeline.
+	 *
+	 * @param track The track.
+	 */
+	public ENHierarchy(ENTrack track) {
+		this(track.getTimeline());
+	}
+
+	ENHierarchy(ENTimeline timeline) {
+		this.timeline = timeline;
+		float[] tatums = timeline.getStarts(ENTrack.FEATURE_TATUMS);
+		float[] beats = timeline.getStarts(ENTrack.FEATURE_BEATS);
+		float[] bars = timeline.getStarts(ENTrack.FEATURE_BARS);
+		float[] sections = timeline.getStarts(ENTrack.FEATURE_SECTIONS);
+		float[] segments = timeline.getStarts(ENTrack.FEATURE_SEGMENTS);
+		tatumBeat = parents(tatums, beats);
+		beatBar = parents(beats, bars);
+		barSection = parents(bars, sections);
+		segmentBeat = parents(segments, beats);
+		beatTatums = children(tatumBeat, beats.length);
+		barBeats = children(beatBar, bars.length);
+		sectionBars = children(barSection, sections.length);
+		beatSegments = children(segmentBeat, beats.length);
+	}
+
+	/**
+	 * Initializes the hierarchy from saved tables, without copying them.
+	 */
+	ENHierarchy(int[] tatumBeat, int[] beatBar, int[] barSection, int[] segmentBeat,
+			int[] beatTatums, int[] barBeats, int[] sectionBars, int[] beatSegments) {
+		this.tatumBeat = tatumBeat;
+		this.beatBar = beatBar;
+		this.barSection = barSection;
+		this.segmentBeat = segmentBeat;
+		this.beatTatums = beatTatums;
+		this.barBeats = barBeats;
+		this.sectionBars = sectionBars;
+		this.beatSegments = beatSegments;
+	}
+
+	/**
+	 * Merges two sorted lists of start times: the parent of each child is the last
+	 * parent starting at or before it.
+	 */
+	private static int[] parents(float[] children, float[] parents) {
+		int[] result = new int[children.length];
+		int p = -1;
+		for (int c=0;c<children.length;c++) {
+			float time = children[c]+EPSILON;
+			while (p+1 < parents.length && parents[p+1] <= time) {
+				p++;
+			}
+			result[c] = p;
+		}
+		return result;
+	}
+
+	/**
+	 * Turns the parent of each child into the range of children of each parent.
+	 */
+	private static int[] children(int[] parentOf, int parentCount) {
+		int[] first = new int[parentCount+1];
+		int c = 0;
+		for (int p=0;p<=parentCount;p++) {
+			while (c < parentOf.length && parentOf[c] < p) {
+				c++;
+			}
+			first[p] = c;
+		}
+		return first;
+	}
+
+	public int getBeatOfTatum(int tatum) {
+		return tatumBeat[tatum];
+	}
+
+	public int getBarOfBeat(int beat) {
+		return beatBar[beat];
+	}
+
+	public int getSectionOfBar(int bar) {
+		return barSection[bar];
+	}
+
+	public int getBeatOfSegment(int segment) {
+		return segmentBeat[segment];
+	}
+
+	/**
+	 * Returns the bar of a segment, through its beat.
+	 *
+	 * @param segment Index of the segment.
+	 * @return Index of the bar, -1 if the segment is before the first bar.
+	 */
+	public int getBarOfSegment(int segment) {
+		int beat = segmentBeat[segment];
+		return beat < 0 ? -1 : beatBar[beat];
+	}
+
+	/**
+	 * Returns the section of a segment, through its beat and bar.
+	 *
+	 * @param segment Index of the segment.
+	 * @return Index of the section, -1 if the segment is before the first section.
+	 */
+	public int getSectionOfSegment(int segment) {
+		int bar = getBarOfSegment(segment);
+		return bar < 0 ? -1 : barSection[bar];
+	}
+
+	/**
+	 * Returns the first tatum of a beat.
+	 *
+	 * @param beat Index of the beat.
+	 * @return Index of the tatum, -1 if the beat has no tatum.
+	 */
+	public int getFirstTatum(int beat) {
+		return first(beatTatums, beat);
+	}
+
+	public int getTatumCount(int beat) {
+		return beatTatums[beat+1]-beatTatums[beat];
+	}
+
+	/**
+	 * Returns the first beat of a bar.
+	 *
+	 * @param bar Index of the bar.
+	 * @return Index of the beat, -1 if the bar has no beat.
+	 */
+	public int getFirstBeat(int bar) {
+		return first(barBeats, bar);
+	}
+
+	public int getBeatCount(int bar) {
+		return barBeats[bar+1]-barBeats[bar];
+	}
+
+	/**
+	 * Returns the first bar of a section.
+	 *
+	 * @param section Index of the section.
+	 * @return Index of the bar, -1 if the section has no bar.
+	 */
+	public int getFirstBar(int section) {
+		return first(sectionBars, section);
+	}
+
+	public int getBarCount(int section) {
+		return sectionBars[section+1]-sectionBars[section];
+	}
+
+	/**
+	 * Returns the first segment starting in a beat.
+	 *
+	 * @param beat Index of the beat.
+	 * @return Index of the segment, -1 if no segment starts in the beat.
+	 */
+	public int getFirstSegment(int beat) {
+		return first(beatSegments, beat);
+	}
+
+	public int getSegmentCount(int beat) {
+		return beatSegments[beat+1]-beatSegments[beat];
+	}
+
+	private static int first(int[] children, int parent) {
+		return children[parent] < children[parent+1] ? children[parent] : -1;
+	}
+
+	/**
+	 * Direct access to the beat of each tatum, for sequential scans.
+	 *
+	 * @return The table. Do not modify.
+	 */
+	public int[] getTatumBeats() {
+		return tatumBeat;
+	}
+
+	/**
+	 * Direct access to the bar of each beat, for sequential scans.
+	 *
+	 * @return The table. Do not modify.
+	 */
+	public int[] getBeatBars() {
+		return beatBar;
+	}
+
+	/**
+	 * Direct access to the section of each bar, for sequential scans.
+	 *
+	 * @return The table. Do not modify.
+	 */
+	public int[] getBarSections() {
+		return barSection;
+	}
+
+	/**
+	 * Direct access to the beat of each segment, for sequential scans.
+	 *
+	 * @return The table. Do not modify.
+	 */
+	public int[] getSegmentBeats() {
+		return segmentBeat;
+	}
+}
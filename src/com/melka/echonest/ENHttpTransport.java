@@ -0,0 +1,179 @@
+//
+// ENHttpTransport.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Default transport, based on HttpURLConnection.
+ *
+ * Connections are kept alive and reused between requests as long as the responses
+ * are read completely and closed, which the library always does. Every connection
+ * has a connect and a read timeout, so a stalled server never blocks a sketch forever.
+ *
+ * Uploads have their own read timeout, none by default: the server only answers an
+ * upload once the analysis of the track is done, which can take minutes.
+ *
+ * @author melka
+ */
+public class ENHttpTransport implements ENTransport {
+
+	private int connectTimeout;
+	private int readTimeout;
+	private int uploadReadTimeout;
+
+	private AtomicLong requests = new AtomicLong();
+	private AtomicLong failures = new AtomicLong();
+	private AtomicLong totalTime = new AtomicLong();
+
+	/**
+	 * Initializes a transport with a 10 seconds connect timeout and a 60 seconds read timeout,
+	 * and no read timeout for uploads.
+	 */
+	public ENHttpTransport() {
+		this(10000, 60000);
+	}
+
+	/**
+	 * Initializes a transport.
+	 *
+	 * @param connectTimeout Connect timeout in milliseconds, 0 for none.
+	 * @param readTimeout Read timeout of the GET requests in milliseconds, 0 for none.
+	 */
+	public ENHttpTransport(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Sets the number of idle connections kept alive per server.
+	 * Must be called before the first request of the application.
+	 *
+	 * @param connections Number of connections to keep.
+	 */
+	public static void setMaxConnections(int connections) {
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", Integer.toString(connections));
+	}
+
+	public InputStream get(String url) throws IOException {
+		long start = System.nanoTime();
+		HttpURLConnection connection = (HttpURLConnection) open(url, readTimeout);
+		try {
+			InputStream in = connection.getInputStream();
+			requests.incrementAndGet();
+			return in;
+		} catch (IOException e) {
+			failures.incrementAndGet();
+			// Reading the error body lets the connection go back to the pool
+			InputStream error = connection.getErrorStream();
+			if (error != null) {
+				try {
+					byte[] buf = new byte[1024];
+					while (error.read(buf) != -1);
+				} finally {
+					error.close();
+				}
+			}
+			throw e;
+		} finally {
+			totalTime.addAndGet(System.nanoTime()-start);
+		}
+	}
+
+	public URLConnection open(String url) throws IOException {
+		return open(url, uploadReadTimeout);
+	}
+
+	private URLConnection open(String url, int timeout) throws IOException {
+		URLConnection connection = new URL(url).openConnection();
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(timeout);
+		connection.setUseCaches(false);
+		connection.setRequestProperty("Connection", "keep-alive");
+		return connection;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public int getUploadReadTimeout() {
+		return uploadReadTimeout;
+	}
+
+	/**
+	 * Sets the read timeout of the uploads, which wait for the end of the analysis.
+	 *
+	 * @param uploadReadTimeout Read timeout in milliseconds, 0 for none.
+	 */
+	public void setUploadReadTimeout(int uploadReadTimeout) {
+		this.uploadReadTimeout = uploadReadTimeout;
+	}
+
+	/**
+	 * Returns the number of successful GET requests.
+	 *
+	 * @return Number of requests.
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns the number of GET requests that failed.
+	 *
+	 * @return Number of failed requests.
+	 */
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	/**
+	 * Returns the average time until the response headers are received.
+	 *
+	 * @return Time in milliseconds.
+	 */
+	public float getAverageLatency() {
+		long count = requests.get()+failures.get();
+		if (count == 0) return 0;
+		return totalTime.get()/1000000f/count;
+	}
+}
@@ -0,0 +1,231 @@
+//
+// ENMappedTrack.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import processing.core.PApplet;
+
+/**
+ * A track read from a memory-mapped .enp5 file (see {@link ENTrackFile}).
+ *
+ * Single values (duration, key, tempo...) are read when the track is opened. Bars,
+ * beats, tatums, sections and segments are only decoded the first time their getter
+ * is called, so opening many tracks to read their tempo or key only touches the
+ * first bytes of each file.
+ *
+ * The public list fields (bars, beats...) stay null until their getter is called or
+ * {@link #decodeAll()} is used.
+ *
+ * @author melka
+ */
+public class ENMappedTrack extends ENTrack {
+
+	private static final long serialVersionUID = 6227154186416383590L;
+
+	transient private ByteBuffer buffer;
+	transient private int[] offsets;
+
+	/**
+	 * Opens a track from a buffer holding a whole .enp5 file.
+	 *
+	 * @param parent The main PApplet.
+	 * @param buffer The file content, usually a MappedByteBuffer.
+	 * @throws IOException If the buffer does not hold a track.
+	 */
+	public ENMappedTrack(PApplet parent, ByteBuffer buffer) throws IOException {
+		super(parent, null, null);
+		this.buffer = buffer;
+		DataInputStream in = stream(0);
+		if (in.readInt() != ENTrackFile.MAGIC) {
+			throw new IOException("Not an .enp5 file");
+		}
+		offsets = ENTrackFile.readHeader(in, this);
+		int[] scalars = {
+			FEATURE_DURATION, FEATURE_END_OF_FADE_IN, FEATURE_START_OF_FADE_OUT, FEATURE_KEY,
+			FEATURE_LOUDNESS, FEATURE_MODE, FEATURE_TEMPO, FEATURE_TIME_SIGNATURE, FEATURE_METADATA
+		};
+		for (int i=0;i<scalars.length;i++) {
+			if (offsets[scalars[i]] != 0) {
+				ENTrackFile.readFeature(this, scalars[i], stream(offsets[scalars[i]]));
+			}
+		}
+	}
+
+	/**
+	 * Decodes all the lists of the file at once. Features missing from the file are
+	 * not requested from the server.
+	 */
+	public void decodeAll() {
+		if (bars == null && offsets[FEATURE_BARS] != 0) getBars();
+		if (beats == null && offsets[FEATURE_BEATS] != 0) getBeats();
+		if (tatums == null && offsets[FEATURE_TATUMS] != 0) getTatums();
+		if (sections == null && offsets[FEATURE_SECTIONS] != 0) getSections();
+		if (segmentStore == null && segments == null && offsets[FEATURE_SEGMENTS] != 0) getSegmentStore();
+	}
+
+	public boolean hasFeature(int feature) {
+		return super.hasFeature(feature) || offsets[feature] != 0;
+	}
+
+	/**
+	 * Reads the hierarchy saved in the file, if any.
+	 */
+	public ENHierarchy getHierarchy() {
+		if (hierarchy == null && offsets[FEATURE_COUNT] != 0) {
+			try {
+				hierarchy = ENTrackFile.readHierarchy(stream(offsets[FEATURE_COUNT]));
+			} catch (IOException e) {
+				System.err.println(">> CORRUPTED HIERARCHY IN "+getTrackMD5()+", REBUILDING IT");
+				offsets[FEATURE_COUNT] = 0;
+			}
+		}
+		return super.getHierarchy();
+	}
+
+	int segmentCount() {
+		if (segmentStore == null && segments == null && offsets[FEATURE_SEGMENTS] != 0) {
+			return count(FEATURE_SEGMENTS);
+		}
+		return super.segmentCount();
+	}
+
+	/**
+	 * Decodes the lists from the file, and only requests the features missing from
+	 * the file from the server. A corrupted list is requested as if it were missing.
+	 */
+	Object fetch(int feature) {
+		if (feature < FEATURE_COUNT && offsets[feature] != 0) {
+			try {
+				switch (feature) {
+					case FEATURE_BARS:		return decodeBars();
+					case FEATURE_BEATS:		return decodeBeats();
+					case FEATURE_TATUMS:	return decodeTatums();
+					case FEATURE_SECTIONS:	return decodeSections();
+					case FEATURE_SEGMENTS:	return decodeSegmentStore();
+				}
+			} catch (RuntimeException e) {
+				// ie: BufferUnderflowException or IndexOutOfBoundsException on a truncated block
+				System.err.println(">> CORRUPTED FEATURE "+feature+" IN "+getTrackMD5()+", LOADING IT FROM SERVER");
+				offsets[feature] = 0;
+			}
+		}
+		return super.fetch(feature);
+	}
+
+	private ENBar[] decodeBars() {
+		int n = count(FEATURE_BARS);
+		float[] time = column(FEATURE_BARS, 0, n);
+		float[] confidence = column(FEATURE_BARS, n, n);
+		ENBar[] decoded = new ENBar[n];
+		for (int i=0;i<n;i++) decoded[i] = new ENBar(confidence[i], time[i]);
+		bars = decoded;
+		return bars;
+	}
+
+	private ENBeat[] decodeBeats() {
+		int n = count(FEATURE_BEATS);
+		float[] time = column(FEATURE_BEATS, 0, n);
+		float[] confidence = column(FEATURE_BEATS, n, n);
+		ENBeat[] decoded = new ENBeat[n];
+		for (int i=0;i<n;i++) decoded[i] = new ENBeat(confidence[i], time[i]);
+		beats = decoded;
+		return beats;
+	}
+
+	private ENTatum[] decodeTatums() {
+		int n = count(FEATURE_TATUMS);
+		float[] time = column(FEATURE_TATUMS, 0, n);
+		float[] confidence = column(FEATURE_TATUMS, n, n);
+		ENTatum[] decoded = new ENTatum[n];
+		for (int i=0;i<n;i++) decoded[i] = new ENTatum(confidence[i], time[i]);
+		tatums = decoded;
+		return tatums;
+	}
+
+	private ENSection[] decodeSections() {
+		int n = count(FEATURE_SECTIONS);
+		float[] start = column(FEATURE_SECTIONS, 0, n);
+		float[] length = column(FEATURE_SECTIONS, n, n);
+		ENSection[] decoded = new ENSection[n];
+		for (int i=0;i<n;i++) decoded[i] = new ENSection(start[i], length[i]);
+		sections = decoded;
+		return sections;
+	}
+
+	private ENSegmentStore decodeSegmentStore() {
+		int n = count(FEATURE_SEGMENTS);
+		int d = n*ENSegmentStore.DIMENSIONS;
+		segmentStore = new ENSegmentStore(n,
+				column(FEATURE_SEGMENTS, 0, n),
+				column(FEATURE_SEGMENTS, n, n),
+				column(FEATURE_SEGMENTS, 2*n, n),
+				column(FEATURE_SEGMENTS, 3*n, n),
+				column(FEATURE_SEGMENTS, 4*n, n),
+				column(FEATURE_SEGMENTS, 5*n, n),
+				column(FEATURE_SEGMENTS, 6*n, d),
+				column(FEATURE_SEGMENTS, 6*n+d, d));
+		return segmentStore;
+	}
+
+	/**
+	 * Number of elements of a list block.
+	 */
+	private int count(int feature) {
+		return buffer.getInt(offsets[feature]);
+	}
+
+	/**
+	 * Reads a column of floats from a list block, in bulk.
+	 *
+	 * @param feature The feature index.
+	 * @param index Index of the first float, after the element count.
+	 * @param length Number of floats.
+	 */
+	private float[] column(int feature, int index, int length) {
+		ByteBuffer b = buffer.duplicate();
+		b.position(offsets[feature]+4+index*4);
+		float[] column = new float[length];
+		b.asFloatBuffer().get(column);
+		return column;
+	}
+
+	private DataInputStream stream(int position) {
+		final ByteBuffer b = buffer.duplicate();
+		b.position(position);
+		return new DataInputStream(new InputStream() {
+			public int read() {
+				return b.hasRemaining() ? b.get() & 0xFF : -1;
+			}
+			public int read(byte[] bytes, int off, int len) {
+				if (!b.hasRemaining()) return -1;
+				len = Math.min(len, b.remaining());
+				b.get(bytes, off, len);
+				return len;
+			}
+		});
+	}
+}
@@ -0,0 +1,262 @@
+//
+// ENMemoryCache.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recently used tracks in memory, shared by all the {@link ENNest}
+ * and {@link EchoNest} objects of the sketch.
+ *
+ * The size of the cache is bounded in approximate bytes, estimated from the number
+ * of segments of each track, which make up most of its memory, and updated when a
+ * track is accessed. When several threads ask for the same track at the same time,
+ * it is loaded once and all of them get the same object.
+ *
+ * Tracks missing features are not cached, so that they are completed on the next
+ * load (see {@link ENNest#loadTrack(String)}).
+ *
+ * The cache used by the library is set with {@link ENNest#setMemoryCache(ENMemoryCache)}.
+ *
+ * @author melka
+ */
+public class ENMemoryCache {
+
+	/**
+	 * Approximate memory used by a track without its segments.
+	 */
+	private static final long TRACK_WEIGHT = 16*1024;
+
+	/**
+	 * Approximate memory used by a segment, in its store and as an ENSegment object.
+	 */
+	private static final long SEGMENT_WEIGHT = 512;
+
+	private long maxWeight;
+	private long weight;
+	private LinkedHashMap<String, Item> tracks = new LinkedHashMap<String, Item>(16, 0.75f, true);
+	private ConcurrentHashMap<String, FutureTask<ENTrack>> loading = new ConcurrentHashMap<String, FutureTask<ENTrack>>();
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong coalesced = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+
+	private static final class Item {
+		final ENTrack track;
+		long weight;
+
+		Item(ENTrack track, long weight) {
+			this.track = track;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Initializes a cache.
+	 *
+	 * @param maxWeight Maximum size of the cache, in approximate bytes.
+	 */
+	public ENMemoryCache(long maxWeight) {
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * Returns a track from the cache, or loads it. Concurrent calls for the same key
+	 * wait for a single load.
+	 *
+	 * @param key Key of the track, ie: its md5 and analysis version.
+	 * @param loader Loads the track on a miss. May return null on failure, which is
+	 * not cached.
+	 * @return The track, or null if it could not be loaded.
+	 */
+	public ENTrack get(final String key, final Callable<ENTrack> loader) {
+		ENTrack cached = lookup(key);
+		if (cached != null) {
+			return cached;
+		}
+		FutureTask<ENTrack> task = new FutureTask<ENTrack>(new Callable<ENTrack>() {
+			public ENTrack call() throws Exception {
+				// another load of the same track may have ended since the first lookup
+				ENTrack track = lookup(key);
+				if (track != null) {
+					return track;
+				}
+				misses.incrementAndGet();
+				return loader.call();
+			}
+		});
+		FutureTask<ENTrack> running = loading.putIfAbsent(key, task);
+		if (running != null) {
+			coalesced.incrementAndGet();
+			task = running;
+		} else {
+			try {
+				task.run();
+				ENTrack track = task.get();
+				if (track != null) {
+					put(key, track);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				return null;
+			} finally {
+				loading.remove(key);
+			}
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns a cached track and updates its weight, which grows as its features are
+	 * loaded.
+	 *
+	 * @return The track, or null if it is not cached.
+	 */
+	private synchronized ENTrack lookup(String key) {
+		Item item = tracks.get(key);
+		if (item == null) {
+			return null;
+		}
+		hits.incrementAndGet();
+		long w = weigh(item.track);
+		if (w != item.weight) {
+			weight += w-item.weight;
+			item.weight = w;
+			evict();
+		}
+		return item.track;
+	}
+
+	/**
+	 * Adds a track to the cache, evicting the least recently used tracks if needed.
+	 * Tracks missing features are not added.
+	 *
+	 * @param key Key of the track.
+	 * @param track The track.
+	 */
+	public synchronized void put(String key, ENTrack track) {
+		if (!track.isComplete()) {
+			return;
+		}
+		Item item = new Item(track, weigh(track));
+		Item previous = tracks.put(key, item);
+		if (previous != null) weight -= previous.weight;
+		weight += item.weight;
+		evict();
+	}
+
+	/**
+	 * Removes a track from the cache.
+	 *
+	 * @param key Key of the track.
+	 */
+	public synchronized void remove(String key) {
+		Item item = tracks.remove(key);
+		if (item != null) weight -= item.weight;
+	}
+
+	/**
+	 * Removes all the tracks from the cache.
+	 */
+	public synchronized void clear() {
+		tracks.clear();
+		weight = 0;
+	}
+
+	public synchronized void setMaxWeight(long maxWeight) {
+		this.maxWeight = maxWeight;
+		evict();
+	}
+
+	public synchronized long getMaxWeight() {
+		return maxWeight;
+	}
+
+	/**
+	 * Returns the approximate memory used by the cached tracks.
+	 *
+	 * @return Size in bytes.
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized int size() {
+		return tracks.size();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of calls that waited for a load already running for the
+	 * same track instead of loading it again.
+	 *
+	 * @return Number of coalesced calls.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	private static long weigh(ENTrack track) {
+		return TRACK_WEIGHT+SEGMENT_WEIGHT*track.segmentCount();
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Item>> it = tracks.entrySet().iterator();
+		// the most recent track is kept even if it is heavier than the cache
+		while (weight > maxWeight && tracks.size() > 1 && it.hasNext()) {
+			Map.Entry<String, Item> eldest = it.next();
+			weight -= eldest.getValue().weight;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+}
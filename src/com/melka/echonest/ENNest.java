@@ -35,6 +35,14 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This library is a wrapper that simplify the use of the Echo Nest API.
@@ -120,7 +128,33 @@ public class ENNest {
 	
 	private ENTrack track;
 	
+	private static ExecutorService executor;
+	private static ENTrackCache trackCache;
+	private static ENMemoryCache memoryCache;
+	
+	/**
+	 * If true, files are uploaded without checking first if they are already analyzed.
+	 */
+	private boolean optimisticUpload = false;
+	
 	public final String VERSION = "0.1.2";
+	
+	/**
+	 * Size of the window mapped at once when hashing a file in mapped mode.
+	 */
+	private static final long HASH_MAP_WINDOW = 64L*1024*1024;
+	/**
+	 * Size of the read buffers used when hashing a file.
+	 */
+	private static final int HASH_BUFFER_SIZE = 1024*1024;
+	/**
+	 * Maximum number of direct hash buffers. They are shared by all the threads, so
+	 * threads created for a single task (ie: virtual threads) do not each allocate
+	 * one. Threads finding none left use a heap buffer.
+	 */
+	private static final int MAX_HASH_BUFFERS = 8;
+	private static final ArrayBlockingQueue<ByteBuffer> hashBuffers = new ArrayBlockingQueue<ByteBuffer>(MAX_HASH_BUFFERS);
+	private static final AtomicInteger hashBufferCount = new AtomicInteger();
 
 	public ENNest() {
 	}
@@ -137,12 +171,8 @@ public class ENNest {
 	public ENNest init(PApplet parent, String ApiKey, String TrackMD5, int Version) {
 		System.out.println("* The Echo Nest Processing Wrapper Library *");
 		System.out.println("* (c) melka 2010 // Licence : GPLv3        *");
-		this.parent = parent;
-		setBaseUrl("http://developer.echonest.com/api/");
-		setApiKey(ApiKey);
-		setArtistId(null);
+		setup(parent, ApiKey, Version);
 		setTrackMD5(TrackMD5);
-		setAnalysisVersion(Version);
 		if (getApiKey() == "") {
 			System.out.println(">> WARNING");
 			System.out.println(">> API KEY NOT SET");
@@ -156,7 +186,7 @@ public class ENNest {
 	}
 	
 	public ENNest init (PApplet parent, String ApiKey, String TrackMD5) {
-		return init(parent,ApiKey,"",3);
+		return init(parent,ApiKey,TrackMD5,3);
 	}
 	
 	public ENNest init (PApplet parent, String ApiKey) {
@@ -167,14 +197,282 @@ public class ENNest {
 		return init(parent,"");
 	}
 	
+	/**
+	 * Sets the fields of the object without contacting the server.
+	 */
+	void setup(PApplet parent, String ApiKey, int Version) {
+		this.parent = parent;
+		setBaseUrl("http://developer.echonest.com/api/");
+		setApiKey(ApiKey);
+		setArtistId(null);
+		setAnalysisVersion(Version);
+	}
+	
+	/**
+	 * Loads all the data of a track: from the track cache if it has already been saved
+	 * with the same analysis version, else from the Echo Nest server, uploading the file
+	 * first if needed. The track is then saved to the cache. A cached track missing some
+	 * features is completed from the server.
+	 * 
+	 * Loaded tracks are kept in the memory cache of the library (see
+	 * {@link #setMemoryCache(ENMemoryCache)}), shared by all the ENNest objects: loading
+	 * the same file again returns the same ENTrack object.
+	 * 
+	 * This method blocks until the track is loaded. It can be called from several threads
+	 * at the same time, and a file requested by several threads is loaded only once.
+	 * 
+	 * With optimistic upload on, a file missing from the hash cache is not hashed before
+	 * the upload: its hash is computed while it is sent, so the file is read only once.
+	 * 
+	 * @param filePath Absolute or relative path of the audio file.
+	 * @return The loaded track, or null if an error occurred.
+	 */
+	public ENTrack loadTrack(final String filePath) {
+		final String h;
+		try {
+			String path = parent.dataPath(filePath);
+			h = getOptimisticUpload() ? ENHashCache.getDefault().lookup(path) : ENHashCache.getDefault().hash(path);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return loadTrack(filePath, null);
+		}
+		if (h == null) {
+			ENTrack track = loadTrack(filePath, null);
+			if (track != null && track.getTrackMD5() != null) {
+				getMemoryCache().put(track.getTrackMD5()+"-v"+getAnalysisVersion(), track);
+			}
+			return track;
+		}
+		return getMemoryCache().get(h+"-v"+getAnalysisVersion(), new Callable<ENTrack>() {
+			public ENTrack call() {
+				return loadTrack(filePath, h);
+			}
+		});
+	}
+	
+	/**
+	 * Loads a track from the track cache or the server.
+	 * 
+	 * @param filePath Absolute or relative path of the audio file.
+	 * @param md5 MD5 hash of the file, null if it is not known yet.
+	 * @return The loaded track, or null if an error occurred.
+	 */
+	private ENTrack loadTrack(String filePath, String md5) {
+		if (md5 != null) {
+			ENTrack track = loadCachedTrack(filePath, md5);
+			if (track != null) {
+				return usable(track);
+			}
+		}
+		
+		ENNest worker = new ENNest();
+		worker.setup(parent, getApiKey(), getAnalysisVersion());
+		worker.setBaseUrl(getBaseUrl());
+		worker.setOptimisticUpload(getOptimisticUpload());
+		System.out.println(">> CHECKING ANALISYS STATUS");
+		if (!worker.uploadFile(filePath)) {
+			System.err.println("*** ERROR, NO FILE ***");
+			return null;
+		}
+		if (md5 == null && worker.getTrackMD5() != null && worker.getTrackMD5().length() > 0) {
+			// the hash is known now, the analysis may have been saved before
+			ENTrack track = loadCachedTrack(filePath, worker.getTrackMD5());
+			if (track != null) {
+				return usable(track);
+			}
+		}
+		System.out.println(">> NO FILE SAVED, LOADING DATA FROM SERVER");
+		ENTrack track = worker.initTrack();
+		track.setAnalysisVersion(getAnalysisVersion());
+		ENTrackLoader loader = new ENTrackLoader();
+		loader.load(track);
+		loader.printTimings();
+		if (ENTrackFile.featureBitmap(track) != 0 || track.refusedBitmap() != 0) {
+			// partial tracks are saved too and completed on the next load
+			track.saveTrackAnalysisToDisk();
+		}
+		return usable(track);
+	}
+	
+	/**
+	 * Reads a track from the track cache and completes it.
+	 * 
+	 * @return The track, or null if it is not in the cache.
+	 */
+	private ENTrack loadCachedTrack(String filePath, String md5) {
+		ENTrack track = getTrackCache().get(md5, getAnalysisVersion(), parent);
+		if (track == null) {
+			return null;
+		}
+		System.out.println(">> LOADED ANALYSIS FROM DISK FOR FILE");
+		System.out.println(">> "+filePath);
+		completeTrack(track);
+		return track;
+	}
+	
+	/**
+	 * Returns null for a track without bars, whether it comes from the cache or the server.
+	 */
+	private static ENTrack usable(ENTrack track) {
+		if (track == null || !track.hasFeature(ENTrack.FEATURE_BARS)) {
+			return null;
+		}
+		return track;
+	}
+	
+	/**
+	 * Fetches the features missing from a cached track, ie: because a request failed
+	 * when it was first loaded, and saves the track again if any was added.
+	 * 
+	 * @param track A track read from the track cache.
+	 */
+	private void completeTrack(ENTrack track) {
+		int bitmap = ENTrackFile.featureBitmap(track);
+		if (track.isComplete()) {
+			return;
+		}
+		int refused = track.refusedBitmap();
+		System.out.println(">> FETCHING MISSING FEATURES");
+		track.setApiKey(getApiKey());
+		track.setBaseUrl(getBaseUrl());
+		ENTrackLoader loader = new ENTrackLoader();
+		loader.loadMissing(track);
+		if (ENTrackFile.featureBitmap(track) != bitmap || track.refusedBitmap() != refused) {
+			getTrackCache().put(track);
+		}
+	}
+	
+	/**
+	 * Loads a track in the background, on the executor of the library
+	 * (see {@link #setExecutor(ExecutorService)}).
+	 * 
+	 * @param filePath Absolute or relative path of the audio file.
+	 * @return A Future giving the loaded track, or null if an error occurred.
+	 */
+	public Future<ENTrack> loadTrackAsync(String filePath) {
+		return loadTrackAsync(filePath, null);
+	}
+	
+	/**
+	 * Loads a track in the background, on the executor of the library
+	 * (see {@link #setExecutor(ExecutorService)}).
+	 * 
+	 * @param filePath Absolute or relative path of the audio file.
+	 * @param listener Notified when the track is loaded or failed. May be null.
+	 * @return A Future giving the loaded track, or null if an error occurred.
+	 */
+	public Future<ENTrack> loadTrackAsync(final String filePath, final ENTrackListener listener) {
+		return getExecutor().submit(new Callable<ENTrack>() {
+			public ENTrack call() {
+				ENTrack track = loadTrack(filePath);
+				if (listener != null) {
+					if (track != null) {
+						listener.trackLoaded(filePath, track);
+					} else {
+						listener.trackFailed(filePath);
+					}
+				}
+				return track;
+			}
+		});
+	}
+	
+	/**
+	 * Returns the cache where the analyses of the tracks are saved.
+	 * By default, an {@link ENDirectoryCache} in {@link ENDirectoryCache#defaultRoot()}.
+	 * 
+	 * @return The track cache of the library.
+	 */
+	public static synchronized ENTrackCache getTrackCache() {
+		if (trackCache == null) {
+			trackCache = new ENDirectoryCache();
+		}
+		return trackCache;
+	}
+	
+	/**
+	 * Replaces the cache where the analyses of the tracks are saved.
+	 * 
+	 * @param cache The new track cache.
+	 */
+	public static synchronized void setTrackCache(ENTrackCache cache) {
+		trackCache = cache;
+	}
+	
+	/**
+	 * Returns the cache keeping the loaded tracks in memory.
+	 * By default, an {@link ENMemoryCache} of 256 MB.
+	 * 
+	 * @return The memory cache of the library.
+	 */
+	public static synchronized ENMemoryCache getMemoryCache() {
+		if (memoryCache == null) {
+			memoryCache = new ENMemoryCache(256L*1024*1024);
+		}
+		return memoryCache;
+	}
+	
+	/**
+	 * Replaces the cache keeping the loaded tracks in memory.
+	 * 
+	 * @param cache The new memory cache.
+	 */
+	public static synchronized void setMemoryCache(ENMemoryCache cache) {
+		memoryCache = cache;
+	}
+	
+	/**
+	 * Returns the executor running the tracks loaded with {@link #loadTrackAsync(String)}.
+	 * By default, a pool of 4 daemon threads.
+	 * 
+	 * @return The executor of the library.
+	 */
+	public static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(4, ENExecutors.daemonThreadFactory("ENNest"));
+		}
+		return executor;
+	}
+	
+	/**
+	 * Switches the library to virtual threads for bulk analysis: every track load and
+	 * every feature request runs on its own virtual thread (see {@link ENExecutors}).
+	 * On runtimes without virtual threads, pools of regular threads of the same
+	 * sizes are used instead.
+	 * 
+	 * @param maxTracks Maximum number of tracks loading at the same time.
+	 * @param maxRequests Maximum number of feature requests running at the same time.
+	 */
+	public static void useVirtualThreads(int maxTracks, int maxRequests) {
+		ExecutorService tracks;
+		synchronized (ENNest.class) {
+			tracks = executor;
+			executor = ENExecutors.newVirtualThreadExecutor(maxTracks);
+		}
+		ExecutorService requests = ENTrackLoader.replaceDefaultExecutor(ENExecutors.newVirtualThreadExecutor(maxRequests));
+		// the tasks already submitted still run
+		if (tracks != null) tracks.shutdown();
+		if (requests != null) requests.shutdown();
+	}
+	
+	/**
+	 * Replaces the executor running the tracks loaded with {@link #loadTrackAsync(String)}.
+	 * It must not be the executor used by {@link ENTrackLoader}.
+	 * 
+	 * @param executor The new executor.
+	 */
+	public static synchronized void setExecutor(ExecutorService executor) {
+		ENNest.executor = executor;
+	}
+	
 	
 	/**
 	 * Tests the API Key against the server to get sure the key can be used.
 	 * @return boolean
 	 */
 	public boolean validateApiKey () {
-		XMLElement data = new XMLElement(parent,baseUrl+"get_duration?api_key="+apiKey+"&version=3&analysis_version=3");
-		if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == INVALID_KEY) {
+		XMLElement data = ENRequest.get(baseUrl+"get_duration?api_key="+apiKey+"&version=3&analysis_version="+analysis_version);
+		if (ENRequest.code(data) == INVALID_KEY) {
 			System.err.println(">> INVALID KEY");
 			return false;
 		} else {
@@ -186,24 +484,37 @@ public class ENNest {
 	
 	/**
 	 * Upload a track to The Echo Nest's analyzer for analysis and later retrieval of track information.
-	 * It first computes an MD5 hash of the file to check if it exists on the Echo Nest's server.
+	 * It first gets the MD5 hash of the file (see {@link ENHashCache}) to check if it exists on the Echo Nest's server.
 	 * If file exists, returns true.
 	 * If not, tries to upload the file to the server then returns true if analysis is successful.
 	 * If an error occurs, returns false.
 	 * 
+	 * With optimistic upload on (see {@link #setOptimisticUpload(boolean)}), the file is
+	 * uploaded directly and its hash is computed while it is sent.
+	 * 
 	 * @param filePath Absolute or relative path of the file to upload.
 	 * @return A boolean, true is successful, false if an error occurs. 
 	 */
 	public boolean uploadFile(String filePath) {
 		String fullPath = parent.dataPath(filePath);
 		setFilePath(fullPath);
+		if (optimisticUpload) {
+			System.out.println(">> OPTIMISTIC UPLOAD");
+			return uploadData();
+		}
 		try {
-			String h = fileHash(getFilePath());
+			String h = ENHashCache.getDefault().hash(getFilePath());
 			setTrackMD5(h);
-			XMLElement data = new XMLElement(parent,baseUrl+"get_duration?api_key="+apiKey+"&md5="+trackMD5+"&version=3&analysis_version=3");
-			if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == INVALID_PARAM) {
+			ENApiKeyPool.Key key = ENRequest.selectKey(trackMD5);
+			String k = key != null ? key.getKey() : apiKey;
+			XMLElement data = ENRequest.get(baseUrl+"get_duration?api_key="+k+"&md5="+trackMD5+"&version=3&analysis_version="+analysis_version, key);
+			int code = ENRequest.code(data);
+			if (code == INVALID_PARAM) {
 				System.out.println(">> UNKNOWN FILE, BEGINNING UPLOAD");
 				return uploadData();
+			} else if (code == UNKNOWN_ERROR) {
+				System.err.println(">> CANNOT REACH SERVER");
+				return false;
 			} else {
 				System.out.println(">> FILE ALREADY ANALYZED");
 				return true;
@@ -215,18 +526,28 @@ public class ENNest {
 	}
 	
 	/**
-	 * Upload the file data (byte[]) to the Echo Nest's server for analysis.
+	 * Upload the file data to the Echo Nest's server for analysis.
+	 * The MD5 hash of the file is computed while the file is sent, checked against the
+	 * hash returned by the server and saved in the {@link ENHashCache}.
 	 * @return A boolean, true if successful, false if an error occurred.
 	 */
 	private boolean uploadData() {
 		File f = new File(getFilePath());
 		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
 			System.out.println(">> Starting Upload");
-			ClientHttpRequest http = new ClientHttpRequest(baseUrl+"upload");
-			http.setParameter("api_key",apiKey);
+			ENApiKeyPool.Key key = ENRequest.selectKey(null);
+			ClientHttpRequest http = new ClientHttpRequest(ENRequest.connect(baseUrl+"upload", key));
+			http.setChunkedStreamingMode(64*1024);
+			http.setParameter("api_key",key != null ? key.getKey() : apiKey);
 			http.setParameter("version","3");
-			http.setParameter("analysis_version","3");
-			http.setParameter("file",f);
+			http.setParameter("analysis_version",String.valueOf(analysis_version));
+			FileInputStream fis = new FileInputStream(f);
+			try {
+				http.setParameter("file",f.getPath(),new DigestInputStream(fis,digest));
+			} finally {
+				fis.close();
+			}
 			http.setParameter("wait","Y");
 			InputStream is = http.post();
 			BufferedReader reader = new BufferedReader(new InputStreamReader(is));
@@ -246,15 +567,35 @@ public class ENNest {
 				}
 			}
 			XMLElement data = new XMLElement(sb.toString());
-			if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == SUCCESS) {
+			ENRequest.report(ENRequest.code(data), key);
+			if (ENRequest.code(data) == SUCCESS) {
+				String md5 = toHex(digest.digest());
+				XMLElement uploaded = data.getChild("track");
+				String serverMD5 = uploaded != null ? uploaded.getStringAttribute("md5") : null;
+				if (serverMD5 != null && !serverMD5.equalsIgnoreCase(md5)) {
+					System.err.println(">> ERROR. UPLOADED FILE HASH "+md5+" DOES NOT MATCH SERVER HASH "+serverMD5);
+					return false;
+				}
+				if (getTrackMD5() != null && getTrackMD5().length() > 0 && !md5.equals(getTrackMD5())) {
+					System.err.println(">> FILE CHANGED DURING UPLOAD, NEW HASH "+md5);
+				}
+				setTrackMD5(md5);
+				ENHashCache.getDefault().put(getFilePath(), md5);
+				ENApiKeyPool pool = ENRequest.getApiKeyPool();
+				if (key != null && pool != null) {
+					// the track is analyzed for this key, keep using it for the track
+					pool.bind(md5, key);
+				}
 				System.out.println(">> UPLOAD COMPLETE");
 				return true;
 			} else {
-				System.err.println(">> ERROR. CODE "+Integer.parseInt(data.getChild("status").getChild("code").getContent()));
+				System.err.println(">> ERROR. CODE "+ENRequest.code(data));
 				return false;
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
 		}
 		return false;
 	}
@@ -262,25 +603,81 @@ public class ENNest {
 	/**
 	 * Compute an MD5 hash for a given file.
 	 * 
-	 * Changed this method, was giving bad results. ie : Bradley Strider / Bradley's Beat.
-	 * MD5 of file is 004f22f350579edab0a965cb88a472d1, the old method was getting rid of the
-	 * leading 00, giving a string of length 30 instead of 32. This will solve some problems
-	 * for some file (always requiring upload even though it was already analyzed)
+	 * The file is read by chunks through a reusable buffer, so hashing a big file
+	 * does not need more memory than hashing a small one.
 	 * 
 	 * @param path Absolute path of the file to hash.
 	 * @return Computed MD5 hash.
 	 * @throws Exception
 	 */
 	public static String fileHash(String path) throws Exception {
-		File f = new File(path);
-		FileInputStream fs = new FileInputStream(f);
-		byte[] b = new byte[(int) f.length()];
-		fs.read(b);
-				
-		MessageDigest h = MessageDigest.getInstance("MD5");
-		h.update(b);
-		byte messageDigest[] = h.digest();
-		
+		return fileHash(path, false);
+	}
+	
+	/**
+	 * Compute an MD5 hash for a given file.
+	 * 
+	 * @param path Absolute path of the file to hash.
+	 * @param mapped If true, the file is memory-mapped by windows of 64 MB instead of being
+	 * read through a buffer. Faster on some systems for very big files.
+	 * @return Computed MD5 hash.
+	 * @throws Exception
+	 */
+	public static String fileHash(String path, boolean mapped) throws Exception {
+		FileInputStream fs = new FileInputStream(path);
+		try {
+			FileChannel channel = fs.getChannel();
+			MessageDigest h = MessageDigest.getInstance("MD5");
+			if (mapped) {
+				long size = channel.size();
+				for (long position=0;position<size;position+=HASH_MAP_WINDOW) {
+					h.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(HASH_MAP_WINDOW, size-position)));
+				}
+			} else {
+				ByteBuffer buffer = takeHashBuffer();
+				try {
+					buffer.clear();
+					while (channel.read(buffer) != -1) {
+						buffer.flip();
+						h.update(buffer);
+						buffer.clear();
+					}
+				} finally {
+					if (buffer.isDirect()) {
+						hashBuffers.offer(buffer);
+					}
+				}
+			}
+			return toHex(h.digest());
+		} finally {
+			fs.close();
+		}
+	}
+	
+	private static ByteBuffer takeHashBuffer() {
+		ByteBuffer buffer = hashBuffers.poll();
+		if (buffer != null) {
+			return buffer;
+		}
+		if (hashBufferCount.incrementAndGet() <= MAX_HASH_BUFFERS) {
+			return ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+		}
+		hashBufferCount.decrementAndGet();
+		return ByteBuffer.allocate(HASH_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Converts an MD5 digest to its hexadecimal form.
+	 * 
+	 * Changed this method, was giving bad results. ie : Bradley Strider / Bradley's Beat.
+	 * MD5 of file is 004f22f350579edab0a965cb88a472d1, the old method was getting rid of the
+	 * leading 00, giving a string of length 30 instead of 32. This will solve some problems
+	 * for some file (always requiring upload even though it was already analyzed)
+	 * 
+	 * @param messageDigest The digest bytes.
+	 * @return The 32 characters hexadecimal string.
+	 */
+	static String toHex(byte[] messageDigest) {
 		StringBuffer hexString = new StringBuffer();
 		for (int i = 0; i < messageDigest.length; i++)
         {
@@ -291,8 +688,7 @@ public class ENNest {
             }
             hexString.append(hex);
         }
-		String md5val = hexString.toString();
-		return md5val;
+		return hexString.toString();
 	}
 	
 	/**
@@ -310,6 +706,62 @@ public class ENNest {
 		return track;
 	}
 	
+	/**
+	 * Replaces the transport used for all the requests of the library.
+	 * 
+	 * @param transport The new transport.
+	 */
+	public static void setTransport(ENTransport transport) {
+		ENRequest.setTransport(transport);
+	}
+	
+	/**
+	 * Returns the transport used for all the requests of the library.
+	 * 
+	 * @return The current transport, an {@link ENHttpTransport} by default.
+	 */
+	public static ENTransport getTransport() {
+		return ENRequest.getTransport();
+	}
+	
+	/**
+	 * Replaces the rate limiter shared by all the requests of the library.
+	 * 
+	 * @param limiter The new rate limiter, or null to send requests without limit.
+	 */
+	public static void setRateLimiter(ENRateLimiter limiter) {
+		ENRequest.setRateLimiter(limiter);
+	}
+	
+	/**
+	 * Returns the rate limiter shared by all the requests of the library.
+	 * 
+	 * @return The current rate limiter, by default 2 requests per second with bursts
+	 * of 14 requests.
+	 */
+	public static ENRateLimiter getRateLimiter() {
+		return ENRequest.getRateLimiter();
+	}
+	
+	/**
+	 * Spreads the requests of the library over the keys of a pool, instead of using
+	 * the key given to {@link #init(PApplet, String)}.
+	 * 
+	 * @param pool The pool of API keys, or null to use a single key.
+	 */
+	public static void setApiKeyPool(ENApiKeyPool pool) {
+		ENRequest.setApiKeyPool(pool);
+	}
+	
+	/**
+	 * Returns the pool of API keys used by the requests of the library.
+	 * 
+	 * @return The pool, null if none is set.
+	 */
+	public static ENApiKeyPool getApiKeyPool() {
+		return ENRequest.getApiKeyPool();
+	}
+	
 	/**
 	 * Return the version of the library.
 	 * 
@@ -376,4 +828,19 @@ public class ENNest {
 	public int getAnalysisVersion() {
 		return analysis_version;
 	}
+	
+	/**
+	 * When set, {@link #uploadFile(String)} skips the hash and the existence check and
+	 * uploads the file right away, hashing it while it is sent. Use it for files known
+	 * to be new: each file is then read only once.
+	 * 
+	 * @param optimistic true to upload without checking first.
+	 */
+	public void setOptimisticUpload(boolean optimistic) {
+		this.optimisticUpload = optimistic;
+	}
+	
+	public boolean getOptimisticUpload() {
+		return optimisticUpload;
+	}
 }
@@ -0,0 +1,647 @@
+//
+// ENPackStore.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import processing.core.PApplet;
+
+/**
+ * Track cache storing many analyses in a few large pack files, for catalogs too big
+ * for one file per track (see {@link ENDirectoryCache}).
+ *
+ * Tracks are appended to pack-N.enpk files, in the .enp5 format of {@link ENTrackFile}.
+ * An index file, index.enpi, maps each md5 and analysis version to its pack, offset
+ * and length. It is an append-only log, read once when the store is opened: the
+ * pack files are never scanned. A lookup is a hash probe in the index followed by
+ * one positioned read (or a memory-mapping for large tracks) into an
+ * {@link ENMappedTrack}.
+ *
+ * Saving a track again leaves its previous copy in the pack as garbage. Compaction
+ * copies the live tracks of the packs holding mostly garbage to the end of the current
+ * pack, then deletes them. It runs in the background when the garbage exceeds half of
+ * the store (see {@link #setAutoCompact(boolean)}), or on demand with {@link #compact()}.
+ *
+ * @author melka
+ */
+public class ENPackStore implements ENTrackCache {
+
+	private static final int INDEX_MAGIC = 0x454E5049;
+	private static final short INDEX_VERSION = 1;
+
+	/**
+	 * Tracks larger than this are memory-mapped instead of read.
+	 */
+	private static final int MAP_THRESHOLD = 256*1024;
+
+	private static ExecutorService compactor;
+
+	private File root;
+	private long maxPackSize = 256L*1024*1024;
+	private boolean autoCompact = true;
+
+	private HashMap<String, Entry> index = new HashMap<String, Entry>();
+	private HashMap<Integer, FileChannel> packs = new HashMap<Integer, FileChannel>();
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private Object appendLock = new Object();
+	private DataOutputStream indexOut;
+	private int currentPack;
+	private volatile long packBytes;
+	private volatile long garbageBytes;
+
+	private AtomicBoolean compacting = new AtomicBoolean();
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Location of a track in the packs.
+	 */
+	private static final class Entry {
+		final int pack;
+		final long offset;
+		final int length;
+
+		Entry(int pack, long offset, int length) {
+			this.pack = pack;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Opens the store in the given directory, reading its index. The directory is
+	 * created if needed.
+	 *
+	 * @param root The store directory.
+	 * @throws IOException If the index cannot be read.
+	 */
+	public ENPackStore(File root) throws IOException {
+		this.root = root;
+		root.mkdirs();
+		readIndex();
+		for (Iterator<Entry> it = index.values().iterator(); it.hasNext();) {
+			Entry e = it.next();
+			if (channel(e.pack) == null) {
+				System.err.println(">> MISSING PACK "+packFile(e.pack));
+				it.remove();
+			}
+		}
+		for (Iterator<FileChannel> it = packs.values().iterator(); it.hasNext();) {
+			packBytes += it.next().size();
+		}
+		indexOut = openIndex(true);
+	}
+
+	/**
+	 * Sets the size above which a new pack file is started.
+	 *
+	 * @param bytes Maximum size of a pack file, 256 MB by default.
+	 */
+	public void setMaxPackSize(long bytes) {
+		maxPackSize = bytes;
+	}
+
+	public long getMaxPackSize() {
+		return maxPackSize;
+	}
+
+	/**
+	 * Enables the compaction in the background when the garbage exceeds half of the
+	 * store. On by default.
+	 *
+	 * @param autoCompact true to compact automatically.
+	 */
+	public void setAutoCompact(boolean autoCompact) {
+		this.autoCompact = autoCompact;
+	}
+
+	public boolean getAutoCompact() {
+		return autoCompact;
+	}
+
+	public ENTrack get(String md5, int analysisVersion, PApplet parent) {
+		String key = key(md5, analysisVersion);
+		Entry e = null;
+		lock.readLock().lock();
+		try {
+			e = index.get(key);
+			if (e == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			ENTrack track = new ENMappedTrack(parent, read(e));
+			hits.incrementAndGet();
+			return track;
+		} catch (IOException ex) {
+			System.err.println(">> CANNOT READ "+key+" FROM "+packFile(e.pack));
+			ex.printStackTrace();
+			misses.incrementAndGet();
+			return null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean put(ENTrack track) {
+		String key = key(track.getTrackMD5(), track.getAnalysisVersion());
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ENTrackFile.write(track, bytes);
+			synchronized (appendLock) {
+				Entry e = append(bytes.toByteArray());
+				writeIndexEntry(indexOut, key, e);
+				indexOut.flush();
+				lock.writeLock().lock();
+				try {
+					Entry previous = index.put(key, e);
+					if (previous != null) garbageBytes += previous.length;
+				} finally {
+					lock.writeLock().unlock();
+				}
+			}
+		} catch (IOException ex) {
+			System.err.println(">> CANNOT SAVE "+key+" TO "+root);
+			ex.printStackTrace();
+			return false;
+		}
+		if (autoCompact && garbageBytes > packBytes/2) {
+			compactInBackground();
+		}
+		return true;
+	}
+
+	/**
+	 * Compacts the store on a background thread. Does nothing if a compaction is
+	 * already running.
+	 *
+	 * @return The running compaction, or null if one was already running.
+	 */
+	public Future<?> compactInBackground() {
+		if (compacting.get()) {
+			return null;
+		}
+		return getCompactor().submit(new Runnable() {
+			public void run() {
+				try {
+					compact();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Moves the live tracks out of the packs holding more garbage than live data, then
+	 * rewrites the index and deletes those packs. Lookups and saves can go on while the
+	 * tracks are copied.
+	 *
+	 * @throws IOException If a pack cannot be read or written.
+	 */
+	public void compact() throws IOException {
+		if (!compacting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			List<Integer> candidates = new ArrayList<Integer>();
+			HashMap<Integer, Long> live = new HashMap<Integer, Long>();
+			lock.readLock().lock();
+			try {
+				for (Iterator<Entry> it = index.values().iterator(); it.hasNext();) {
+					Entry e = it.next();
+					Long l = live.get(e.pack);
+					live.put(e.pack, Long.valueOf((l != null ? l.longValue() : 0)+e.length));
+				}
+				for (Iterator<Map.Entry<Integer, FileChannel>> it = packs.entrySet().iterator(); it.hasNext();) {
+					Map.Entry<Integer, FileChannel> p = it.next();
+					Long l = live.get(p.getKey());
+					long size = p.getValue().size();
+					// an empty pack holds no garbage, ie: the one nextPack just started
+					if (size > 0 && (l == null || l.longValue() < size/2)) {
+						candidates.add(p.getKey());
+					}
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			synchronized (appendLock) {
+				// the current pack is never compacted while tracks are appended to it
+				if (candidates.contains(Integer.valueOf(currentPack))) {
+					nextPack();
+				}
+			}
+			if (candidates.isEmpty()) {
+				return;
+			}
+			int[] moved = new int[candidates.size()];
+			for (int i=0;i<candidates.size();i++) {
+				moved[i] = compactPack(candidates.get(i).intValue());
+			}
+
+			// the old packs are deleted only once the index no longer points to them
+			synchronized (appendLock) {
+				lock.writeLock().lock();
+				try {
+					rewriteIndex();
+					for (int i=0;i<candidates.size();i++) {
+						int pack = candidates.get(i).intValue();
+						FileChannel ch = packs.remove(Integer.valueOf(pack));
+						long size = ch.size();
+						ch.close();
+						packBytes -= size;
+						garbageBytes -= size;
+						if (!packFile(pack).delete()) {
+							System.err.println(">> CANNOT DELETE "+packFile(pack));
+						}
+					}
+				} finally {
+					lock.writeLock().unlock();
+				}
+			}
+			for (int i=0;i<candidates.size();i++) {
+				System.out.println(">> COMPACTED "+packFile(candidates.get(i).intValue()).getName()+", "+moved[i]+" TRACKS MOVED");
+			}
+		} finally {
+			compacting.set(false);
+		}
+	}
+
+	/**
+	 * Copies the live tracks of a pack to the current pack and points the index in
+	 * memory to the copies.
+	 *
+	 * @return The number of tracks moved.
+	 */
+	private int compactPack(int pack) throws IOException {
+		HashMap<String, Entry> moving = new HashMap<String, Entry>();
+		FileChannel ch;
+		lock.readLock().lock();
+		try {
+			ch = packs.get(Integer.valueOf(pack));
+			for (Iterator<Map.Entry<String, Entry>> it = index.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Entry> e = it.next();
+				if (e.getValue().pack == pack) moving.put(e.getKey(), e.getValue());
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		// pack files are never modified in place, so the copy needs no lock
+		HashMap<String, Entry> moved = new HashMap<String, Entry>();
+		for (Iterator<Map.Entry<String, Entry>> it = moving.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Entry> e = it.next();
+			ByteBuffer data = ByteBuffer.allocate(e.getValue().length);
+			readFully(ch, data, e.getValue().offset);
+			synchronized (appendLock) {
+				moved.put(e.getKey(), append(data.array()));
+			}
+		}
+
+		synchronized (appendLock) {
+			lock.writeLock().lock();
+			try {
+				for (Iterator<Map.Entry<String, Entry>> it = moved.entrySet().iterator(); it.hasNext();) {
+					Map.Entry<String, Entry> e = it.next();
+					Entry old = moving.get(e.getKey());
+					if (index.get(e.getKey()) == old) {
+						index.put(e.getKey(), e.getValue());
+						// still live in the old pack, subtracted with it below
+						garbageBytes += old.length;
+					} else {
+						// saved again during the copy
+						garbageBytes += e.getValue().length;
+					}
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+		return moved.size();
+	}
+
+	/**
+	 * Closes the pack and index files.
+	 */
+	public void close() {
+		synchronized (appendLock) {
+			lock.writeLock().lock();
+			try {
+				indexOut.close();
+				for (Iterator<FileChannel> it = packs.values().iterator(); it.hasNext();) {
+					it.next().close();
+				}
+				packs.clear();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of tracks in the store.
+	 *
+	 * @return Number of tracks.
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return index.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the total size of the pack files.
+	 *
+	 * @return Size in bytes.
+	 */
+	public long getSize() {
+		return packBytes;
+	}
+
+	/**
+	 * Returns the size of the old copies of tracks that compaction would reclaim.
+	 *
+	 * @return Size in bytes.
+	 */
+	public long getGarbageSize() {
+		return garbageBytes;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Tracks are never evicted from a pack store.
+	 *
+	 * @return Always 0.
+	 */
+	public long getEvictionCount() {
+		return 0;
+	}
+
+	private static synchronized ExecutorService getCompactor() {
+		if (compactor == null) {
+			compactor = Executors.newSingleThreadExecutor(ENExecutors.daemonThreadFactory("ENPackStore"));
+		}
+		return compactor;
+	}
+
+	private static String key(String md5, int analysisVersion) {
+		return md5+"-v"+analysisVersion;
+	}
+
+	private File packFile(int pack) {
+		return new File(root, "pack-"+pack+".enpk");
+	}
+
+	/**
+	 * Returns the channel of a pack, opening it if needed. Only called while the
+	 * index is read, before the store is shared.
+	 *
+	 * @return The channel, or null if the pack file does not exist.
+	 */
+	private FileChannel channel(int pack) throws IOException {
+		FileChannel ch = packs.get(Integer.valueOf(pack));
+		if (ch == null) {
+			File f = packFile(pack);
+			if (!f.exists()) {
+				return null;
+			}
+			ch = new RandomAccessFile(f, "rw").getChannel();
+			packs.put(Integer.valueOf(pack), ch);
+		}
+		return ch;
+	}
+
+	/**
+	 * Appends a track to the current pack, starting a new pack when it is full.
+	 * Called with the append lock held.
+	 */
+	private Entry append(byte[] data) throws IOException {
+		FileChannel ch = packs.get(Integer.valueOf(currentPack));
+		if (ch == null || ch.size() >= maxPackSize) {
+			ch = nextPack();
+		}
+		long offset = ch.size();
+		ByteBuffer b = ByteBuffer.wrap(data);
+		long position = offset;
+		while (b.hasRemaining()) {
+			position += ch.write(b, position);
+		}
+		// the data must be on disk before the index points to it
+		ch.force(false);
+		packBytes += data.length;
+		return new Entry(currentPack, offset, data.length);
+	}
+
+	/**
+	 * Starts a new pack. Called with the append lock held.
+	 */
+	private FileChannel nextPack() throws IOException {
+		currentPack++;
+		while (packFile(currentPack).exists()) currentPack++;
+		FileChannel ch = new RandomAccessFile(packFile(currentPack), "rw").getChannel();
+		lock.writeLock().lock();
+		try {
+			packs.put(Integer.valueOf(currentPack), ch);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return ch;
+	}
+
+	private ByteBuffer read(Entry e) throws IOException {
+		FileChannel ch = packs.get(Integer.valueOf(e.pack));
+		if (e.length >= MAP_THRESHOLD) {
+			return ch.map(FileChannel.MapMode.READ_ONLY, e.offset, e.length);
+		}
+		ByteBuffer b = ByteBuffer.allocate(e.length);
+		readFully(ch, b, e.offset);
+		b.flip();
+		return b;
+	}
+
+	private static void readFully(FileChannel ch, ByteBuffer b, long position) throws IOException {
+		while (b.hasRemaining()) {
+			int n = ch.read(b, position);
+			if (n < 0) throw new EOFException();
+			position += n;
+		}
+	}
+
+	/**
+	 * Reads the index log. Later entries replace earlier ones, and an entry cut by a
+	 * crash at the end of the file is truncated, so that new entries are not appended
+	 * after it.
+	 */
+	private void readIndex() throws IOException {
+		File f = new File(root, "index.enpi");
+		if (!f.exists()) {
+			return;
+		}
+		// end of the last complete entry
+		long end = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 64*1024));
+		try {
+			if (in.readInt() != INDEX_MAGIC) {
+				throw new IOException("Not a pack index: "+f);
+			}
+			short version = in.readShort();
+			if (version > INDEX_VERSION) {
+				throw new IOException("Unsupported pack index version "+version+": "+f);
+			}
+			end = 6;
+			while (true) {
+				String key;
+				Entry e;
+				try {
+					key = in.readUTF();
+					e = new Entry(in.readInt(), in.readLong(), in.readInt());
+				} catch (EOFException eof) {
+					break;
+				} catch (UTFDataFormatException utf) {
+					break;
+				}
+				end += utfLength(key)+16;
+				Entry previous = index.put(key, e);
+				if (previous != null) garbageBytes += previous.length;
+				if (e.pack > currentPack) currentPack = e.pack;
+			}
+		} catch (EOFException e) {
+			// empty index
+		} finally {
+			in.close();
+		}
+		if (end < f.length()) {
+			System.err.println(">> TRUNCATING "+f+" AT "+end+" BYTES");
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			try {
+				raf.getChannel().truncate(end);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the length of a string written by writeUTF, its 2 bytes of length
+	 * included.
+	 */
+	private static int utfLength(String s) {
+		int length = 2;
+		for (int i=0;i<s.length();i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				length++;
+			} else if (c > 0x07FF) {
+				length += 3;
+			} else {
+				length += 2;
+			}
+		}
+		return length;
+	}
+
+	private DataOutputStream openIndex(boolean append) throws IOException {
+		File f = new File(root, "index.enpi");
+		boolean header = !append || f.length() == 0;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f, append)));
+		if (header) {
+			out.writeInt(INDEX_MAGIC);
+			out.writeShort(INDEX_VERSION);
+			out.flush();
+		}
+		return out;
+	}
+
+	private static void writeIndexEntry(DataOutputStream out, String key, Entry e) throws IOException {
+		out.writeUTF(key);
+		out.writeInt(e.pack);
+		out.writeLong(e.offset);
+		out.writeInt(e.length);
+	}
+
+	/**
+	 * Replaces the index log with the live entries only. Called once per compaction,
+	 * with the append lock and the write lock held.
+	 */
+	private void rewriteIndex() throws IOException {
+		File tmp = new File(root, "index.enpi.tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(INDEX_MAGIC);
+			out.writeShort(INDEX_VERSION);
+			for (Iterator<Map.Entry<String, Entry>> it = index.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Entry> e = it.next();
+				writeIndexEntry(out, e.getKey(), e.getValue());
+			}
+		} finally {
+			out.close();
+		}
+		indexOut.close();
+		File f = new File(root, "index.enpi");
+		if (!tmp.renameTo(f)) {
+			f.delete();
+			if (!tmp.renameTo(f)) {
+				indexOut = openIndex(true);
+				throw new IOException("Cannot rename "+tmp+" to "+f);
+			}
+		}
+		indexOut = openIndex(true);
+	}
+}
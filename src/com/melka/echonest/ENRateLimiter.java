@@ -0,0 +1,221 @@
+//
+// ENRateLimiter.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting the rate of the requests sent to the Echo Nest server.
+ *
+ * Every request of the library takes a token first (see
+ * {@link ENNest#setRateLimiter(ENRateLimiter)}). Tokens are added at the current rate,
+ * up to the burst size. When the bucket is empty, requests wait their turn in the
+ * order they arrived.
+ *
+ * The rate adapts to the server: it is halved when a request gets LIMIT_EXCEEDED,
+ * then grows back slowly with each successful request, up to the configured rate.
+ *
+ * @author melka
+ */
+public class ENRateLimiter {
+
+	/**
+	 * Lowest rate the limiter slows down to, in requests per second.
+	 */
+	private static final double MIN_RATE = 0.05;
+
+	/**
+	 * The rate is halved at most once per period, so the responses of requests sent
+	 * before the first LIMIT_EXCEEDED do not halve it again.
+	 */
+	private static final long DECREASE_PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+	private double maxRate;
+	private double rate;
+	private int burst;
+	private double tokens;
+	private long lastRefill;
+	private long lastDecrease;
+
+	private AtomicInteger waiting = new AtomicInteger();
+	private AtomicLong requests = new AtomicLong();
+	private AtomicLong delayed = new AtomicLong();
+	private AtomicLong totalWait = new AtomicLong();
+	private AtomicLong limitExceeded = new AtomicLong();
+
+	/**
+	 * Initializes a limiter.
+	 *
+	 * @param rate Maximum number of requests per second.
+	 * @param burst Number of requests that can be sent at once after an idle time.
+	 */
+	public ENRateLimiter(double rate, int burst) {
+		setRate(rate);
+		setBurst(burst);
+		tokens = this.burst;
+		lastRefill = System.nanoTime();
+		lastDecrease = lastRefill-DECREASE_PERIOD;
+	}
+
+	/**
+	 * Waits for a token.
+	 *
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public void acquire() throws InterruptedException {
+		long wait;
+		synchronized (this) {
+			refill();
+			// the token is reserved now, so waiting requests are served in order
+			tokens -= 1;
+			wait = tokens < 0 ? (long) (-tokens/rate*1e9) : 0;
+		}
+		requests.incrementAndGet();
+		if (wait > 0) {
+			delayed.incrementAndGet();
+			totalWait.addAndGet(wait);
+			waiting.incrementAndGet();
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} finally {
+				waiting.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Adapts the rate to the return code of a response: halved on LIMIT_EXCEEDED,
+	 * slightly increased on SUCCESS.
+	 *
+	 * @param code The Echo Nest return code of the response.
+	 */
+	public synchronized void onResponse(int code) {
+		if (code == ENNest.LIMIT_EXCEEDED) {
+			limitExceeded.incrementAndGet();
+			long now = System.nanoTime();
+			if (now-lastDecrease >= DECREASE_PERIOD) {
+				refill();
+				rate = Math.max(MIN_RATE, rate/2);
+				tokens = Math.min(tokens, 0);
+				lastDecrease = now;
+				System.err.println(">> LIMIT EXCEEDED, SLOWING DOWN TO "+(float) rate+" REQUESTS/S");
+			}
+		} else if (code == ENNest.SUCCESS && rate < maxRate) {
+			refill();
+			rate = Math.min(maxRate, rate+maxRate/50);
+		}
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens+(now-lastRefill)*rate/1e9);
+		lastRefill = now;
+	}
+
+	/**
+	 * Sets the maximum rate, and resets the current rate to it.
+	 *
+	 * @param rate Maximum number of requests per second.
+	 */
+	public synchronized void setRate(double rate) {
+		if (rate <= 0) throw new IllegalArgumentException("Rate must be positive");
+		if (lastRefill != 0) refill();
+		this.maxRate = rate;
+		this.rate = rate;
+	}
+
+	/**
+	 * Returns the configured maximum rate.
+	 *
+	 * @return Requests per second.
+	 */
+	public synchronized double getMaxRate() {
+		return maxRate;
+	}
+
+	/**
+	 * Returns the current rate, lower than the maximum rate after LIMIT_EXCEEDED responses.
+	 *
+	 * @return Requests per second.
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	public synchronized void setBurst(int burst) {
+		if (burst < 1) throw new IllegalArgumentException("Burst must be at least 1");
+		this.burst = burst;
+	}
+
+	public synchronized int getBurst() {
+		return burst;
+	}
+
+	/**
+	 * Returns the number of requests waiting for a token.
+	 *
+	 * @return Current queue depth.
+	 */
+	public int getQueueDepth() {
+		return waiting.get();
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns the number of requests that had to wait for a token.
+	 *
+	 * @return Number of delayed requests.
+	 */
+	public long getDelayedCount() {
+		return delayed.get();
+	}
+
+	/**
+	 * Returns the average time requests waited for a token, including those that did
+	 * not wait.
+	 *
+	 * @return Time in milliseconds.
+	 */
+	public double getAverageWait() {
+		long n = requests.get();
+		return n == 0 ? 0 : totalWait.get()/1e6/n;
+	}
+
+	/**
+	 * Returns the total time requests waited for a token.
+	 *
+	 * @return Time in milliseconds.
+	 */
+	public long getTotalWait() {
+		return totalWait.get()/1000000;
+	}
+
+	public long getLimitExceededCount() {
+		return limitExceeded.get();
+	}
+}
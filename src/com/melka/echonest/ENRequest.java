@@ -0,0 +1,212 @@
+//
+// ENRequest.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.URLConnection;
+
+import processing.xml.XMLElement;
+
+/**
+ * Single entry point for the requests made by the library.
+ *
+ * @author melka
+ */
+final class ENRequest {
+
+	private static volatile ENTransport transport = new ENHttpTransport();
+
+	/**
+	 * 2 requests per second, the quota of the API keys, and one track worth of burst.
+	 */
+	private static volatile ENRateLimiter rateLimiter = new ENRateLimiter(2, ENTrack.FEATURE_COUNT);
+
+	private static volatile ENApiKeyPool apiKeyPool;
+
+	private ENRequest() {
+	}
+
+	static ENTransport getTransport() {
+		return transport;
+	}
+
+	static void setTransport(ENTransport t) {
+		transport = t;
+	}
+
+	static ENRateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	static void setRateLimiter(ENRateLimiter limiter) {
+		rateLimiter = limiter;
+	}
+
+	static ENApiKeyPool getApiKeyPool() {
+		return apiKeyPool;
+	}
+
+	static void setApiKeyPool(ENApiKeyPool pool) {
+		apiKeyPool = pool;
+	}
+
+	/**
+	 * Chooses a key of the pool for a request, waiting for one if they are all left
+	 * out after LIMIT_EXCEEDED (see {@link ENApiKeyPool#await(String)}).
+	 *
+	 * @param md5 MD5 hash of the track, may be null.
+	 * @return The key, or null if there is no pool or all its keys are invalid.
+	 * @throws InterruptedIOException If the thread is interrupted while waiting.
+	 */
+	static ENApiKeyPool.Key selectKey(String md5) throws InterruptedIOException {
+		ENApiKeyPool pool = apiKeyPool;
+		if (pool == null) {
+			return null;
+		}
+		try {
+			return pool.await(md5);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a key of the pool");
+		}
+	}
+
+	/**
+	 * Sends a request and parses the whole response.
+	 *
+	 * @param url The full URL of the request.
+	 * @return The response, or null if the request failed.
+	 */
+	static XMLElement get(String url) {
+		return get(url, null);
+	}
+
+	/**
+	 * Sends a request made with a key of the pool and parses the whole response.
+	 *
+	 * @param url The full URL of the request.
+	 * @param key The key used in the URL, null to use the shared rate limiter.
+	 * @return The response, or null if the request failed.
+	 */
+	static XMLElement get(String url, ENApiKeyPool.Key key) {
+		InputStream in = null;
+		try {
+			in = open(url, key);
+			XMLElement data = new XMLElement(new InputStreamReader(in, "UTF-8"));
+			report(code(data), key);
+			return data;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (in != null) in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sends a request and returns the response stream, to be read and closed by the caller.
+	 *
+	 * @param url The full URL of the request.
+	 * @return The response stream.
+	 * @throws IOException
+	 */
+	static InputStream open(String url) throws IOException {
+		return open(url, null);
+	}
+
+	/**
+	 * Sends a request made with a key of the pool and returns the response stream.
+	 *
+	 * @param url The full URL of the request.
+	 * @param key The key used in the URL, null to use the shared rate limiter.
+	 * @return The response stream.
+	 * @throws IOException
+	 */
+	static InputStream open(String url, ENApiKeyPool.Key key) throws IOException {
+		acquire(key);
+		return transport.get(url);
+	}
+
+	/**
+	 * Opens a connection for a request with a body, ie: an upload.
+	 *
+	 * @param url The full URL of the request.
+	 * @param key The key used in the request, null to use the shared rate limiter.
+	 * @return The connection, not connected yet.
+	 * @throws IOException
+	 */
+	static URLConnection connect(String url, ENApiKeyPool.Key key) throws IOException {
+		acquire(key);
+		return transport.open(url);
+	}
+
+	/**
+	 * Tells the rate limiter, and the key of the pool if one was used, the return code
+	 * of a response read outside of {@link #get(String, ENApiKeyPool.Key)}.
+	 *
+	 * @param code The Echo Nest return code.
+	 * @param key The key used in the request, may be null.
+	 */
+	static void report(int code, ENApiKeyPool.Key key) {
+		if (key != null) {
+			key.report(code);
+			return;
+		}
+		ENRateLimiter limiter = rateLimiter;
+		if (limiter != null) {
+			limiter.onResponse(code);
+		}
+	}
+
+	private static void acquire(ENApiKeyPool.Key key) throws IOException {
+		ENRateLimiter limiter = key != null ? key.getRateLimiter() : rateLimiter;
+		if (limiter != null) {
+			try {
+				limiter.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the rate limiter");
+			}
+		}
+	}
+
+	/**
+	 * Returns the Echo Nest return code of a response.
+	 *
+	 * @param data A response, may be null.
+	 * @return The return code, UNKNOWN_ERROR if there is no response.
+	 */
+	static int code(XMLElement data) {
+		if (data == null || data.getChild("status") == null) {
+			return ENNest.UNKNOWN_ERROR;
+		}
+		return Integer.parseInt(data.getChild("status").getChild("code").getContent().trim());
+	}
+}
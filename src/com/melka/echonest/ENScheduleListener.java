@@ -0,0 +1,72 @@
+//
+// ENScheduleListener.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package com.melka.echonest;
+
+import com.melka.echonest.ENTrack.*;
+
+/**
+ * Notified by an {@link ENScheduler} when the elements of a track start playing.
+ *
+ * Methods are called on the sketch thread, before draw(), or on the scheduler
+ * thread if the scheduler was created without a PApplet. When several elements
+ * start together, they are notified from the largest to the smallest: section,
+ * bar, beat, tatum, then segment.
+ *
+ * Extend {@link Adapter} to only implement some of the methods.
+ *
+ * @author melka
+ */
+public interface ENScheduleListener {
+
+	public void sectionStarted(int index, ENSection section);
+
+	public void barStarted(int index, ENBar bar);
+
+	public void beatStarted(int index, ENBeat beat);
+
+	public void tatumStarted(int index, ENTatum tatum);
+
+	public void segmentStarted(int index, ENSegment segment);
+
+	/**
+	 * A listener ignoring all the events.
+	 */
+	public static abstract class Adapter implements ENScheduleListener {
+
+		public void sectionStarted(int index, ENSection section) {
+		}
+
+		public void barStarted(int index, ENBar bar) {
+		}
+
+		public void beatStarted(int index, ENBeat beat) {
+		}
+
+		public void tatumStarted(int index, ENTatum tatum) {
+		}
+
+		public void segmentStarted(int index, ENSegment segment) {
+		}
+	}
+}
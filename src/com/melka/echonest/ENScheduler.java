@@ -0,0 +1,392 @@
+//
+// ENScheduler.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package com.melka.echonest;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import processing.core.PApplet;
+
+import com.melka.echonest.ENTrack.*;
+
+/**
+ * Notifies an {@link ENScheduleListener} when the sections, bars, beats, tatums and
+ * segments of a track start, following the audio playing it.
+ *
+ * The position given by the {@link ENClock} is smoothed with the system clock. A
+ * thread looks ahead for the next event, sleeps until just before it and spins for
+ * the last moments, so events are sent within a fraction of a millisecond instead of
+ * once per frame. The events are handed to the sketch thread through a lock-free
+ * queue and sent before the next draw(), or sent directly from the scheduler thread
+ * when no PApplet is given, ie: to drive lights with the lowest jitter.
+ *
+ * <pre>
+ * scheduler = new ENScheduler(this, track, clock, new ENScheduleListener.Adapter() {
+ *   public void beatStarted(int index, ENTrack.ENBeat beat) {
+ *     flash = 255;
+ *   }
+ * });
+ * scheduler.setLatency(30);
+ * player.play();
+ * scheduler.start();
+ * </pre>
+ *
+ * Seeking the audio is followed. After a jump backwards the events are sent again
+ * from the new position; after a jump forwards the skipped events are not sent.
+ *
+ * @author melka
+ */
+public class ENScheduler {
+
+	/**
+	 * Features followed, in the order simultaneous events are sent.
+	 */
+	private static final int[] FEATURES = {
+		ENTrack.FEATURE_SECTIONS, ENTrack.FEATURE_BARS, ENTrack.FEATURE_BEATS,
+		ENTrack.FEATURE_TATUMS, ENTrack.FEATURE_SEGMENTS
+	};
+
+	/**
+	 * The thread stops sleeping this long before an event, and spins until it is due.
+	 */
+	private static final long SPIN_TIME = TimeUnit.MILLISECONDS.toNanos(2);
+	/**
+	 * Longest sleep, so that seeks and pauses are noticed quickly.
+	 */
+	private static final long MAX_SLEEP = TimeUnit.MILLISECONDS.toNanos(10);
+	/**
+	 * Weight of each new reading of the clock in the estimated position.
+	 */
+	private static final double SMOOTHING = 0.1;
+	/**
+	 * The estimate snaps to the clock when they are further apart, in seconds.
+	 */
+	private static final double RESYNC = 0.15;
+	/**
+	 * The audio is considered paused when the clock does not move for this long.
+	 */
+	private static final long STALL_TIME = TimeUnit.MILLISECONDS.toNanos(150);
+	/**
+	 * Jumps larger than these are seeks, in seconds.
+	 */
+	private static final double SEEK_BACK = 0.25;
+	private static final double SEEK_FORWARD = 1;
+
+	private ENTrack track;
+	private ENClock clock;
+	private ENScheduleListener listener;
+	private boolean direct;
+
+	private ENSection[] sections;
+	private ENBar[] bars;
+	private ENBeat[] beats;
+	private ENTatum[] tatums;
+	private ENSegmentStore segments;
+	private float[][] starts = new float[ENTrack.FEATURE_COUNT][];
+
+	private volatile int latency;
+	private volatile boolean running;
+	private Thread thread;
+	private ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<Event>();
+
+	// only used by the scheduler thread
+	private int[] next = new int[ENTrack.FEATURE_COUNT];
+	private double base;
+	private long baseTime;
+	private double lastReading;
+	private long lastChange;
+
+	// written by the scheduler thread only
+	private volatile long eventCount;
+	private volatile long totalLateness;
+	private volatile long maxLateness;
+
+	private static final class Event {
+		final int feature;
+		final int index;
+
+		Event(int feature, int index) {
+			this.feature = feature;
+			this.index = index;
+		}
+	}
+
+	/**
+	 * Initializes a scheduler sending the events on the sketch thread, before draw().
+	 * The lists of the track are loaded if needed.
+	 *
+	 * @param parent The main PApplet, or null to send the events from the scheduler thread.
+	 * @param track The track playing.
+	 * @param clock The position of the audio.
+	 * @param listener The listener notified of the events.
+	 */
+	public ENScheduler(PApplet parent, ENTrack track, ENClock clock, ENScheduleListener listener) {
+		this.track = track;
+		this.clock = clock;
+		this.listener = listener;
+
+		sections = track.getSections();
+		bars = track.getBars();
+		beats = track.getBeats();
+		tatums = track.getTatums();
+		segments = track.getSegmentStore();
+		ENTimeline timeline = track.getTimeline();
+		starts[ENTrack.FEATURE_SECTIONS] = sections != null ? timeline.getStarts(ENTrack.FEATURE_SECTIONS) : new float[0];
+		starts[ENTrack.FEATURE_BARS] = bars != null ? timeline.getStarts(ENTrack.FEATURE_BARS) : new float[0];
+		starts[ENTrack.FEATURE_BEATS] = beats != null ? timeline.getStarts(ENTrack.FEATURE_BEATS) : new float[0];
+		starts[ENTrack.FEATURE_TATUMS] = tatums != null ? timeline.getStarts(ENTrack.FEATURE_TATUMS) : new float[0];
+		starts[ENTrack.FEATURE_SEGMENTS] = segments != null ? timeline.getStarts(ENTrack.FEATURE_SEGMENTS) : new float[0];
+
+		direct = parent == null;
+		if (parent != null) {
+			parent.registerPre(this);
+			parent.registerDispose(this);
+		}
+	}
+
+	/**
+	 * Initializes a scheduler sending the events from its own thread. Listeners must
+	 * return quickly, and must not draw.
+	 *
+	 * @param track The track playing.
+	 * @param clock The position of the audio.
+	 * @param listener The listener notified of the events.
+	 */
+	public ENScheduler(ENTrack track, ENClock clock, ENScheduleListener listener) {
+		this(null, track, clock, listener);
+	}
+
+	/**
+	 * Starts following the clock. Events before the current position are not sent.
+	 */
+	public synchronized void start() {
+		if (thread != null) return;
+		running = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				schedule();
+			}
+		}, "ENScheduler");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MAX_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Stops the scheduler. Events not sent yet to the sketch are dropped.
+	 */
+	public synchronized void stop() {
+		if (thread == null) return;
+		running = false;
+		LockSupport.unpark(thread);
+		if (Thread.currentThread() != thread) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		thread = null;
+		events.clear();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Sends the events earlier, to make up for the time the sound takes to reach the
+	 * speakers or the lights take to react. Negative values send the events later.
+	 *
+	 * @param millis Latency in milliseconds.
+	 */
+	public void setLatency(int millis) {
+		latency = millis;
+	}
+
+	public int getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Returns the number of events sent since the scheduler was created.
+	 *
+	 * @return Number of events.
+	 */
+	public long getEventCount() {
+		return eventCount;
+	}
+
+	/**
+	 * Returns the average time between the start of the elements and the moment the
+	 * scheduler thread sent their events.
+	 *
+	 * @return Time in milliseconds.
+	 */
+	public double getAverageLateness() {
+		long n = eventCount;
+		return n == 0 ? 0 : totalLateness/1e6/n;
+	}
+
+	/**
+	 * Returns the longest time between the start of an element and the moment the
+	 * scheduler thread sent its event.
+	 *
+	 * @return Time in milliseconds.
+	 */
+	public double getMaxLateness() {
+		return maxLateness/1e6;
+	}
+
+	/**
+	 * Sends the queued events, called by Processing before draw().
+	 */
+	public void pre() {
+		Event e;
+		while ((e = events.poll()) != null) {
+			dispatch(e.feature, e.index);
+		}
+	}
+
+	public void dispose() {
+		stop();
+	}
+
+	private void schedule() {
+		long now = System.nanoTime();
+		base = lastReading = clock.getPosition();
+		baseTime = lastChange = now;
+		double last = base+latency/1000.0;
+		seek(last);
+		while (running) {
+			now = System.nanoTime();
+			double target = estimate(now)+latency/1000.0;
+			if (target < last-SEEK_BACK || target > last+SEEK_FORWARD) {
+				seek(target);
+			}
+			last = target;
+			fire(target);
+
+			double due = nextStart();
+			if (Double.isNaN(due)) {
+				// end of the track, waiting for a seek
+				LockSupport.parkNanos(MAX_SLEEP);
+				continue;
+			}
+			long wait = (long) ((due-target)*1e9);
+			if (wait > SPIN_TIME) {
+				LockSupport.parkNanos(Math.min(wait-SPIN_TIME, MAX_SLEEP));
+			} else {
+				Thread.yield();
+			}
+		}
+	}
+
+	/**
+	 * Estimates the position of the audio. Between two steps of the clock, the position
+	 * moves with the system clock; each step corrects it slightly.
+	 */
+	private double estimate(long now) {
+		double reading = clock.getPosition();
+		if (reading != lastReading) {
+			double estimate = base+(now-baseTime)/1e9;
+			double error = reading-estimate;
+			base = Math.abs(error) > RESYNC ? reading : estimate+error*SMOOTHING;
+			baseTime = now;
+			lastReading = reading;
+			lastChange = now;
+		} else if (now-lastChange > STALL_TIME) {
+			// paused
+			base = reading;
+			baseTime = now;
+		}
+		return base+(now-baseTime)/1e9;
+	}
+
+	private void seek(double target) {
+		for (int i=0;i<FEATURES.length;i++) {
+			float[] s = starts[FEATURES[i]];
+			next[FEATURES[i]] = ENTimeline.ceiling(s, 0, s.length, (float) target);
+		}
+	}
+
+	/**
+	 * Sends the events due at the target position, in time order.
+	 */
+	private void fire(double target) {
+		while (true) {
+			int feature = -1;
+			float first = 0;
+			for (int i=0;i<FEATURES.length;i++) {
+				int f = FEATURES[i];
+				if (next[f] < starts[f].length) {
+					float t = starts[f][next[f]];
+					if (t <= target && (feature < 0 || t < first)) {
+						feature = f;
+						first = t;
+					}
+				}
+			}
+			if (feature < 0) return;
+
+			long late = (long) ((target-first)*1e9);
+			totalLateness += late;
+			if (late > maxLateness) maxLateness = late;
+			eventCount++;
+
+			int index = next[feature]++;
+			if (direct) {
+				dispatch(feature, index);
+			} else {
+				events.add(new Event(feature, index));
+			}
+		}
+	}
+
+	private double nextStart() {
+		double due = Double.NaN;
+		for (int i=0;i<FEATURES.length;i++) {
+			int f = FEATURES[i];
+			if (next[f] < starts[f].length && (Double.isNaN(due) || starts[f][next[f]] < due)) {
+				due = starts[f][next[f]];
+			}
+		}
+		return due;
+	}
+
+	private void dispatch(int feature, int index) {
+		try {
+			switch (feature) {
+				case ENTrack.FEATURE_SECTIONS:	listener.sectionStarted(index, sections[index]); break;
+				case ENTrack.FEATURE_BARS:		listener.barStarted(index, bars[index]); break;
+				case ENTrack.FEATURE_BEATS:		listener.beatStarted(index, beats[index]); break;
+				case ENTrack.FEATURE_TATUMS:	listener.tatumStarted(index, tatums[index]); break;
+				case ENTrack.FEATURE_SEGMENTS:	listener.segmentStarted(index, segments.getSegment(track, index)); break;
+			}
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,172 @@
+//
+// ENSegmentParser.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming parser for the get_segments responses.
+ *
+ * The segments response is by far the biggest one, a few thousands segments with
+ * 26 values each. Instead of building the whole XMLElement tree and walking it,
+ * this parser reads the response directly from the stream and writes each value
+ * into an {@link ENSegmentStore} as soon as it is read.
+ *
+ * @author melka
+ */
+public class ENSegmentParser {
+
+	private static final int NONE = 0;
+	private static final int LOUDNESS = 1;
+	private static final int PITCHES = 2;
+	private static final int TIMBRE = 3;
+
+	private static XMLInputFactory factory;
+
+	private int code = ENTrack.UNKNOWN_ERROR;
+
+	private static synchronized XMLInputFactory getFactory() {
+		if (factory == null) {
+			factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		}
+		return factory;
+	}
+
+	/**
+	 * Parses a get_segments response.
+	 *
+	 * @param in The response stream. It is not closed by the parser.
+	 * @return The segments, or null if the server returned an error code (see {@link #getCode()}).
+	 * @throws XMLStreamException If the response is not well formed.
+	 */
+	public ENSegmentStore parse(InputStream in) throws XMLStreamException {
+		XMLStreamReader r = getFactory().createXMLStreamReader(in);
+		ENSegmentStore segments = new ENSegmentStore(1024);
+		code = ENTrack.UNKNOWN_ERROR;
+		try {
+			boolean inStatus = false;
+			boolean inAnalysis = false;
+			boolean inSegment = false;
+			int part = NONE;
+			int index = 0;
+			int segment = -1;
+			String segmentName = null;
+
+			while (r.hasNext()) {
+				int event = r.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = r.getLocalName();
+					if (inSegment) {
+						if (part == NONE) {
+							index = 0;
+							if (name.equals("loudness")) {
+								part = LOUDNESS;
+							} else if (name.equals("pitches")) {
+								part = PITCHES;
+							} else if (name.equals("timbre")) {
+								part = TIMBRE;
+							}
+						} else if (part == LOUDNESS) {
+							float time = parseFloat(r.getAttributeValue(null, "time"));
+							float value = parseFloat(r.getElementText());
+							if (index == 0) {
+								segments.setAverageLoudness(segment, value, time);
+							} else if (index == 1) {
+								segments.setMaxLoudness(segment, value, time);
+							}
+							index++;
+						} else if (part == PITCHES) {
+							float value = parseFloat(r.getElementText());
+							if (index < ENSegmentStore.DIMENSIONS) segments.setPitch(segment, index, value);
+							index++;
+						} else if (part == TIMBRE) {
+							float value = parseFloat(r.getElementText());
+							if (index < ENSegmentStore.DIMENSIONS) segments.setTimbre(segment, index, value);
+							index++;
+						}
+					} else if (inAnalysis) {
+						inSegment = true;
+						segmentName = name;
+						float start = parseFloat(r.getAttributeValue(null, "start"));
+						float duration = parseFloat(r.getAttributeValue(null, "duration"));
+						segment = segments.add(start, duration);
+					} else if (name.equals("status")) {
+						inStatus = true;
+					} else if (inStatus && name.equals("code")) {
+						code = Integer.parseInt(r.getElementText().trim());
+						if (code != ENTrack.SUCCESS) {
+							return null;
+						}
+					} else if (name.equals("analysis")) {
+						inAnalysis = true;
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					String name = r.getLocalName();
+					if (inSegment) {
+						if (part != NONE) {
+							if ((part == LOUDNESS && name.equals("loudness"))
+									|| (part == PITCHES && name.equals("pitches"))
+									|| (part == TIMBRE && name.equals("timbre"))) {
+								part = NONE;
+							}
+						} else if (name.equals(segmentName)) {
+							inSegment = false;
+						}
+					} else if (name.equals("status")) {
+						inStatus = false;
+					} else if (name.equals("analysis")) {
+						break;
+					}
+				}
+			}
+		} finally {
+			r.close();
+		}
+		if (code != ENTrack.SUCCESS) {
+			return null;
+		}
+		segments.trimToSize();
+		return segments;
+	}
+
+	/**
+	 * Returns the Echo Nest return code of the last parsed response.
+	 *
+	 * @return One of the ENTrack return codes.
+	 */
+	public int getCode() {
+		return code;
+	}
+
+	private static float parseFloat(String s) {
+		if (s == null) return 0;
+		return Float.parseFloat(s.trim());
+	}
+}
@@ -0,0 +1,315 @@
+//
+// ENSegmentStore.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+import java.io.Serializable;
+
+import com.melka.echonest.ENTrack.*;
+
+/**
+ * Compact storage for the segments of a track.
+ *
+ * Each value of the segments is stored in its own column of floats instead of one
+ * {@link ENSegment} object per segment. Pitches and timbres are stored in flat arrays
+ * of 12 values per segment: the pitches of segment i are in
+ * pitches[i*12] to pitches[i*12+11].
+ *
+ * {@link ENSegment} objects can still be created from the store when needed.
+ *
+ * @author melka
+ */
+public class ENSegmentStore implements Serializable {
+
+	private static final long serialVersionUID = 4301587129370563127L;
+
+	/**
+	 * Number of values in the pitches and timbres of a segment.
+	 */
+	public static final int DIMENSIONS = 12;
+
+	private int size;
+	private float[] start;
+	private float[] duration;
+	private float[] averageLoudness;
+	private float[] averageLoudnessTime;
+	private float[] maxLoudness;
+	private float[] maxLoudnessTime;
+	private float[] pitches;
+	private float[] timbres;
+
+	/**
+	 * Initializes an empty store.
+	 *
+	 * @param capacity Number of segments the store can hold before growing.
+	 */
+	public ENSegmentStore(int capacity) {
+		if (capacity < 1) capacity = 1;
+		start = new float[capacity];
+		duration = new float[capacity];
+		averageLoudness = new float[capacity];
+		averageLoudnessTime = new float[capacity];
+		maxLoudness = new float[capacity];
+		maxLoudnessTime = new float[capacity];
+		pitches = new float[capacity*DIMENSIONS];
+		timbres = new float[capacity*DIMENSIONS];
+	}
+
+	/**
+	 * Initializes a complete store from its columns, without copying them.
+	 */
+	ENSegmentStore(int size, float[] start, float[] duration, float[] averageLoudness, float[] averageLoudnessTime,
+			float[] maxLoudness, float[] maxLoudnessTime, float[] pitches, float[] timbres) {
+		this.size = size;
+		this.start = start;
+		this.duration = duration;
+		this.averageLoudness = averageLoudness;
+		this.averageLoudnessTime = averageLoudnessTime;
+		this.maxLoudness = maxLoudness;
+		this.maxLoudnessTime = maxLoudnessTime;
+		this.pitches = pitches;
+		this.timbres = timbres;
+	}
+
+	/**
+	 * Builds a store from segment objects.
+	 *
+	 * @param segments The segments to copy.
+	 * @return A new store.
+	 */
+	public static ENSegmentStore fromSegments(ENSegment[] segments) {
+		ENSegmentStore store = new ENSegmentStore(segments.length);
+		for (int i=0;i<segments.length;i++) {
+			ENSegment s = segments[i];
+			int index = store.add(s.start, s.duration);
+			store.setAverageLoudness(index, s.averageLoudness.loudness, s.averageLoudness.startTime);
+			store.setMaxLoudness(index, s.maxLoudness.loudness, s.maxLoudness.startTime);
+			System.arraycopy(s.pitches, 0, store.pitches, index*DIMENSIONS, DIMENSIONS);
+			System.arraycopy(s.timbres, 0, store.timbres, index*DIMENSIONS, DIMENSIONS);
+		}
+		return store;
+	}
+
+	/**
+	 * Appends a segment to the store. Loudness, pitches and timbres are set to 0.
+	 *
+	 * @param start Start of the segment (in seconds).
+	 * @param duration Duration of the segment (in seconds).
+	 * @return Index of the new segment.
+	 */
+	public int add(float start, float duration) {
+		if (size == this.start.length) {
+			grow(size*2);
+		}
+		int index = size++;
+		this.start[index] = start;
+		this.duration[index] = duration;
+		averageLoudness[index] = 0;
+		averageLoudnessTime[index] = 0;
+		maxLoudness[index] = 0;
+		maxLoudnessTime[index] = 0;
+		int offset = index*DIMENSIONS;
+		for (int j=0;j<DIMENSIONS;j++) {
+			pitches[offset+j] = 0;
+			timbres[offset+j] = 0;
+		}
+		return index;
+	}
+
+	/**
+	 * Shrinks the columns to the number of segments, once the store is complete.
+	 */
+	public void trimToSize() {
+		if (size != start.length) {
+			grow(size);
+		}
+	}
+
+	private void grow(int capacity) {
+		if (capacity < 1) capacity = 1;
+		start = resize(start, capacity);
+		duration = resize(duration, capacity);
+		averageLoudness = resize(averageLoudness, capacity);
+		averageLoudnessTime = resize(averageLoudnessTime, capacity);
+		maxLoudness = resize(maxLoudness, capacity);
+		maxLoudnessTime = resize(maxLoudnessTime, capacity);
+		pitches = resize(pitches, capacity*DIMENSIONS);
+		timbres = resize(timbres, capacity*DIMENSIONS);
+	}
+
+	private float[] resize(float[] column, int length) {
+		float[] resized = new float[length];
+		System.arraycopy(column, 0, resized, 0, Math.min(column.length, length));
+		return resized;
+	}
+
+	public void setAverageLoudness(int index, float loudness, float time) {
+		averageLoudness[index] = loudness;
+		averageLoudnessTime[index] = time;
+	}
+
+	public void setMaxLoudness(int index, float loudness, float time) {
+		maxLoudness[index] = loudness;
+		maxLoudnessTime[index] = time;
+	}
+
+	public void setPitch(int index, int dimension, float value) {
+		pitches[index*DIMENSIONS+dimension] = value;
+	}
+
+	public void setTimbre(int index, int dimension, float value) {
+		timbres[index*DIMENSIONS+dimension] = value;
+	}
+
+	/**
+	 * Returns the number of segments.
+	 *
+	 * @return Number of segments in the store.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public float getStart(int index) {
+		return start[index];
+	}
+
+	public float getDuration(int index) {
+		return duration[index];
+	}
+
+	public float getAverageLoudness(int index) {
+		return averageLoudness[index];
+	}
+
+	public float getAverageLoudnessTime(int index) {
+		return averageLoudnessTime[index];
+	}
+
+	public float getMaxLoudness(int index) {
+		return maxLoudness[index];
+	}
+
+	public float getMaxLoudnessTime(int index) {
+		return maxLoudnessTime[index];
+	}
+
+	public float getPitch(int index, int dimension) {
+		return pitches[index*DIMENSIONS+dimension];
+	}
+
+	public float getTimbre(int index, int dimension) {
+		return timbres[index*DIMENSIONS+dimension];
+	}
+
+	/**
+	 * Direct access to the start column, for sequential scans.
+	 * Only the first {@link #size()} values are meaningful.
+	 *
+	 * @return The start column. Do not modify.
+	 */
+	public float[] getStarts() {
+		return start;
+	}
+
+	/**
+	 * Direct access to the duration column, for sequential scans.
+	 * Only the first {@link #size()} values are meaningful.
+	 *
+	 * @return The duration column. Do not modify.
+	 */
+	public float[] getDurations() {
+		return duration;
+	}
+
+	/**
+	 * Direct access to the average loudness column, for sequential scans.
+	 * Only the first {@link #size()} values are meaningful.
+	 *
+	 * @return The average loudness column. Do not modify.
+	 */
+	public float[] getAverageLoudnesses() {
+		return averageLoudness;
+	}
+
+	/**
+	 * Direct access to the max loudness column, for sequential scans.
+	 * Only the first {@link #size()} values are meaningful.
+	 *
+	 * @return The max loudness column. Do not modify.
+	 */
+	public float[] getMaxLoudnesses() {
+		return maxLoudness;
+	}
+
+	/**
+	 * Direct access to the pitches, 12 values per segment.
+	 * Only the first {@link #size()}*12 values are meaningful.
+	 *
+	 * @return The flat pitches array. Do not modify.
+	 */
+	public float[] getPitches() {
+		return pitches;
+	}
+
+	/**
+	 * Direct access to the timbres, 12 values per segment.
+	 * Only the first {@link #size()}*12 values are meaningful.
+	 *
+	 * @return The flat timbres array. Do not modify.
+	 */
+	public float[] getTimbres() {
+		return timbres;
+	}
+
+	/**
+	 * Creates an {@link ENSegment} object for one segment of the store.
+	 * The object holds a copy of the values.
+	 *
+	 * @param track The track the segment belongs to.
+	 * @param index Index of the segment.
+	 * @return A new ENSegment.
+	 */
+	public ENSegment getSegment(ENTrack track, int index) {
+		ENSegmentLoudness average = track.new ENSegmentLoudness(averageLoudness[index], averageLoudnessTime[index], "average");
+		ENSegmentLoudness max = track.new ENSegmentLoudness(maxLoudness[index], maxLoudnessTime[index], "maximum");
+		float[] p = new float[DIMENSIONS];
+		float[] t = new float[DIMENSIONS];
+		System.arraycopy(pitches, index*DIMENSIONS, p, 0, DIMENSIONS);
+		System.arraycopy(timbres, index*DIMENSIONS, t, 0, DIMENSIONS);
+		return track.new ENSegment(start[index], duration[index], average, max, p, t);
+	}
+
+	/**
+	 * Creates {@link ENSegment} objects for all the segments of the store.
+	 *
+	 * @param track The track the segments belong to.
+	 * @return An array of new ENSegment objects.
+	 */
+	public ENSegment[] toSegments(ENTrack track) {
+		ENSegment[] segments = new ENSegment[size];
+		for (int i=0;i<size;i++) {
+			segments[i] = getSegment(track, i);
+		}
+		return segments;
+	}
+}
@@ -0,0 +1,321 @@
+//
+// ENSimilarity.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package com.melka.echonest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Self-similarity matrices and novelty curves, to find the repeats and the structure
+ * of a track.
+ *
+ * The input is a flat array of 12 values per element, ie: the pitches or timbres of
+ * an {@link ENSegmentStore}, or a result of {@link ENBeatSync}:
+ * <pre>
+ * ENSegmentStore store = track.getSegmentStore();
+ * float[] ssm = ENSimilarity.matrix(store.getTimbres(), store.size(), ENSimilarity.EUCLIDEAN, null);
+ * float[] novelty = ENSimilarity.novelty(ssm, store.size(), 32, ENSimilarity.EUCLIDEAN);
+ * </pre>
+ *
+ * The matrix is computed by tiles small enough to stay in the processor cache, and
+ * only once for each pair of elements since it is symmetric. Tiles can be computed in
+ * parallel by an executor. For long tracks, the diagonals() and bandNovelty() methods
+ * only keep the diagonals near the main one instead of the whole n*n matrix.
+ *
+ * @author melka
+ */
+public final class ENSimilarity {
+
+	/**
+	 * Euclidean distance between the elements: 0 on the diagonal, larger values for
+	 * elements further apart.
+	 */
+	public static final int EUCLIDEAN = 0;
+	/**
+	 * Cosine similarity between the elements: 1 on the diagonal, from -1 to 1.
+	 */
+	public static final int COSINE = 1;
+
+	/**
+	 * Elements per side of a tile: two tiles of 64 vectors use 6 KB.
+	 */
+	private static final int TILE = 64;
+
+	/**
+	 * Largest n for which n*n values fit in an array.
+	 */
+	private static final int MAX_SIZE = 46340;
+
+	private static final int D = ENSegmentStore.DIMENSIONS;
+
+	/**
+	 * Receives the diagonals of a matrix, one at a time.
+	 */
+	public interface Diagonals {
+
+		/**
+		 * Called for each diagonal, from the main one outwards.
+		 *
+		 * @param lag Distance from the main diagonal: values[i] is the value of
+		 * elements i and i+lag.
+		 * @param values The diagonal. The array is reused for the next diagonal.
+		 * @param length Number of values, n-lag.
+		 */
+		public void diagonal(int lag, float[] values, int length);
+	}
+
+	private ENSimilarity() {
+	}
+
+	/**
+	 * Computes the self-similarity matrix of n elements.
+	 *
+	 * @param values 12 values per element.
+	 * @param n Number of elements.
+	 * @param metric EUCLIDEAN or COSINE.
+	 * @param executor Computes the rows of tiles in parallel, or null to compute them
+	 * on the calling thread.
+	 * @return The n*n matrix, row by row: the value of elements i and j is at i*n+j.
+	 */
+	public static float[] matrix(final float[] values, final int n, final int metric, ExecutorService executor) {
+		if (n > MAX_SIZE) {
+			throw new IllegalArgumentException("Too many elements for a full matrix, use diagonals()");
+		}
+		checkMetric(metric);
+		final float[] inverseNorms = metric == COSINE ? inverseNorms(values, n) : null;
+		final float[] matrix = new float[n*n];
+		int rows = (n+TILE-1)/TILE;
+		if (executor == null) {
+			for (int r=0;r<rows;r++) {
+				tileRow(values, inverseNorms, n, metric, matrix, r*TILE);
+			}
+			return matrix;
+		}
+		List<Future<?>> futures = new ArrayList<Future<?>>(rows);
+		for (int r=0;r<rows;r++) {
+			final int i0 = r*TILE;
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					tileRow(values, inverseNorms, n, metric, matrix, i0);
+				}
+			}));
+		}
+		for (int r=0;r<rows;r++) {
+			try {
+				futures.get(r).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				return null;
+			}
+		}
+		return matrix;
+	}
+
+	/**
+	 * Computes the diagonals of the matrix near the main one, without keeping the
+	 * matrix. Memory use is a single diagonal.
+	 *
+	 * @param values 12 values per element.
+	 * @param n Number of elements.
+	 * @param metric EUCLIDEAN or COSINE.
+	 * @param diagonals Number of diagonals, including the main one.
+	 * @param receiver Receives each diagonal.
+	 */
+	public static void diagonals(float[] values, int n, int metric, int diagonals, Diagonals receiver) {
+		checkMetric(metric);
+		float[] inverseNorms = metric == COSINE ? inverseNorms(values, n) : null;
+		float[] diagonal = new float[n];
+		int count = Math.min(diagonals, n);
+		for (int lag=0;lag<count;lag++) {
+			int length = n-lag;
+			for (int i=0;i<length;i++) {
+				int j = i+lag;
+				diagonal[i] = metric == EUCLIDEAN
+					? distance(values, i*D, j*D)
+					: dot(values, i*D, j*D)*inverseNorms[i]*inverseNorms[j];
+			}
+			receiver.diagonal(lag, diagonal, length);
+		}
+	}
+
+	/**
+	 * Computes the novelty curve of a matrix, by sliding a checkerboard kernel along
+	 * its diagonal. Peaks are the boundaries between parts of the track.
+	 *
+	 * @param matrix A result of {@link #matrix(float[], int, int, ExecutorService)}.
+	 * @param n Number of elements.
+	 * @param kernelSize Half the width of the kernel, in elements.
+	 * @param metric The metric of the matrix.
+	 * @return The novelty of each element.
+	 */
+	public static float[] novelty(float[] matrix, int n, int kernelSize, int metric) {
+		checkMetric(metric);
+		float[] kernel = kernel(kernelSize, metric);
+		int w = 2*kernelSize;
+		float[] novelty = new float[n];
+		for (int i=0;i<n;i++) {
+			int from = Math.max(0, kernelSize-i);
+			int to = Math.min(w, n-i+kernelSize);
+			float sum = 0;
+			for (int a=from;a<to;a++) {
+				int row = (i-kernelSize+a)*n+i-kernelSize;
+				int k = a*w;
+				for (int b=from;b<to;b++) {
+					sum += kernel[k+b]*matrix[row+b];
+				}
+			}
+			novelty[i] = sum;
+		}
+		return novelty;
+	}
+
+	/**
+	 * Computes the novelty curve without the full matrix: only the 2*kernelSize
+	 * diagonals covered by the kernel are kept, ie: n*64 values for a kernel of 32
+	 * instead of n*n.
+	 *
+	 * @param values 12 values per element.
+	 * @param n Number of elements.
+	 * @param metric EUCLIDEAN or COSINE.
+	 * @param kernelSize Half the width of the kernel, in elements.
+	 * @return The novelty of each element.
+	 */
+	public static float[] bandNovelty(float[] values, int n, int metric, int kernelSize) {
+		final int w = 2*kernelSize;
+		final float[][] band = new float[w][];
+		diagonals(values, n, metric, w, new Diagonals() {
+			public void diagonal(int lag, float[] values, int length) {
+				band[lag] = new float[length];
+				System.arraycopy(values, 0, band[lag], 0, length);
+			}
+		});
+		float[] kernel = kernel(kernelSize, metric);
+		float[] novelty = new float[n];
+		for (int i=0;i<n;i++) {
+			int from = Math.max(0, kernelSize-i);
+			int to = Math.min(w, n-i+kernelSize);
+			float sum = 0;
+			for (int a=from;a<to;a++) {
+				int x = i-kernelSize+a;
+				int k = a*w;
+				for (int b=from;b<to;b++) {
+					int y = i-kernelSize+b;
+					sum += x <= y ? kernel[k+b]*band[y-x][x] : kernel[k+b]*band[x-y][y];
+				}
+			}
+			novelty[i] = sum;
+		}
+		return novelty;
+	}
+
+	/**
+	 * Computes the tiles of one row of tiles, from the diagonal to the right, and
+	 * mirrors them below the diagonal.
+	 */
+	private static void tileRow(float[] values, float[] inverseNorms, int n, int metric, float[] matrix, int i0) {
+		int i1 = Math.min(i0+TILE, n);
+		for (int j0=i0;j0<n;j0+=TILE) {
+			int j1 = Math.min(j0+TILE, n);
+			for (int i=i0;i<i1;i++) {
+				int a = i*D;
+				int row = i*n;
+				for (int j=(j0 == i0 ? i : j0);j<j1;j++) {
+					float s = metric == EUCLIDEAN
+						? distance(values, a, j*D)
+						: dot(values, a, j*D)*inverseNorms[i]*inverseNorms[j];
+					matrix[row+j] = s;
+					matrix[j*n+i] = s;
+				}
+			}
+		}
+	}
+
+	private static float distance(float[] v, int a, int b) {
+		float d0 = v[a]-v[b], d1 = v[a+1]-v[b+1], d2 = v[a+2]-v[b+2], d3 = v[a+3]-v[b+3];
+		float d4 = v[a+4]-v[b+4], d5 = v[a+5]-v[b+5], d6 = v[a+6]-v[b+6], d7 = v[a+7]-v[b+7];
+		float d8 = v[a+8]-v[b+8], d9 = v[a+9]-v[b+9], d10 = v[a+10]-v[b+10], d11 = v[a+11]-v[b+11];
+		// independent sums, so the additions do not wait for each other
+		float s0 = d0*d0+d4*d4+d8*d8;
+		float s1 = d1*d1+d5*d5+d9*d9;
+		float s2 = d2*d2+d6*d6+d10*d10;
+		float s3 = d3*d3+d7*d7+d11*d11;
+		return (float) Math.sqrt((s0+s1)+(s2+s3));
+	}
+
+	private static float dot(float[] v, int a, int b) {
+		float s0 = v[a]*v[b]+v[a+4]*v[b+4]+v[a+8]*v[b+8];
+		float s1 = v[a+1]*v[b+1]+v[a+5]*v[b+5]+v[a+9]*v[b+9];
+		float s2 = v[a+2]*v[b+2]+v[a+6]*v[b+6]+v[a+10]*v[b+10];
+		float s3 = v[a+3]*v[b+3]+v[a+7]*v[b+7]+v[a+11]*v[b+11];
+		return (s0+s1)+(s2+s3);
+	}
+
+	/**
+	 * 1/norm of each element, 0 for null vectors so their similarity is 0.
+	 */
+	private static float[] inverseNorms(float[] values, int n) {
+		float[] inverse = new float[n];
+		for (int i=0;i<n;i++) {
+			float norm = (float) Math.sqrt(dot(values, i*D, i*D));
+			inverse[i] = norm > 0 ? 1/norm : 0;
+		}
+		return inverse;
+	}
+
+	/**
+	 * Checkerboard kernel with a gaussian taper: positive where both elements are on
+	 * the same side of the center, negative across it. Negated for distances, which
+	 * are low where similarities are high.
+	 */
+	private static float[] kernel(int kernelSize, int metric) {
+		if (kernelSize < 1) {
+			throw new IllegalArgumentException("Kernel size must be at least 1");
+		}
+		int w = 2*kernelSize;
+		float[] kernel = new float[w*w];
+		double sigma = kernelSize/2.0;
+		float sign = metric == EUCLIDEAN ? -1 : 1;
+		for (int a=0;a<w;a++) {
+			double x = a-kernelSize+0.5;
+			for (int b=0;b<w;b++) {
+				double y = b-kernelSize+0.5;
+				double g = Math.exp(-(x*x+y*y)/(2*sigma*sigma));
+				kernel[a*w+b] = (float) ((x*y > 0 ? g : -g)*sign);
+			}
+		}
+		return kernel;
+	}
+
+	private static void checkMetric(int metric) {
+		if (metric != EUCLIDEAN && metric != COSINE) {
+			throw new IllegalArgumentException("Unknown metric "+metric);
+		}
+	}
+}
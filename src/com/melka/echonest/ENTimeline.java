@@ -0,0 +1,334 @@
+//
+// ENTimeline.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+/**
+ * Finds the bar, beat, tatum, section or segment playing at a given time.
+ *
+ * The start and end times of each list of the track are copied once into arrays of
+ * floats, searched by binary search. For playback, a {@link Cursor} remembers the last
+ * index found and usually only has to look at the next element.
+ *
+ * Lists are designated by their ENTrack.FEATURE_* index: FEATURE_BARS, FEATURE_BEATS,
+ * FEATURE_TATUMS, FEATURE_SECTIONS or FEATURE_SEGMENTS. Times are in seconds.
+ *
+ * <pre>
+ * ENTimeline timeline = track.getTimeline();
+ * ENTimeline.Cursor segment = timeline.cursor(ENTrack.FEATURE_SEGMENTS);
+ * ...
+ * int i = segment.seek(player.position()/1000f);
+ * </pre>
+ *
+ * @author melka
+ */
+public class ENTimeline {
+
+	private float[][] starts = new float[ENTrack.FEATURE_COUNT][];
+	private float[][] ends = new float[ENTrack.FEATURE_COUNT][];
+
+	/**
+	 * The features the timeline was built from, one bit per feature index.
+	 */
+	int features;
+
+	/**
+	 * Builds the timeline of a track, loading its lists if needed. A list that cannot
+	 * be loaded is empty in the timeline.
+	 *
+	 * @param track The track.
+	 */
+	public ENTimeline(ENTrack track) {
+		float end = Float.NaN;
+		if (track.getDuration() != null) {
+			end = track.getDuration().duration;
+			features |= 1 << ENTrack.FEATURE_DURATION;
+		}
+
+		ENTrack.ENBar[] bars = track.getBars();
+		if (bars != null) features |= 1 << ENTrack.FEATURE_BARS;
+		float[] barStarts = new float[bars != null ? bars.length : 0];
+		for (int i=0;i<barStarts.length;i++) barStarts[i] = bars[i].time;
+		setPoints(ENTrack.FEATURE_BARS, barStarts, end);
+
+		ENTrack.ENBeat[] beats = track.getBeats();
+		if (beats != null) features |= 1 << ENTrack.FEATURE_BEATS;
+		float[] beatStarts = new float[beats != null ? beats.length : 0];
+		for (int i=0;i<beatStarts.length;i++) beatStarts[i] = beats[i].time;
+		setPoints(ENTrack.FEATURE_BEATS, beatStarts, end);
+
+		ENTrack.ENTatum[] tatums = track.getTatums();
+		if (tatums != null) features |= 1 << ENTrack.FEATURE_TATUMS;
+		float[] tatumStarts = new float[tatums != null ? tatums.length : 0];
+		for (int i=0;i<tatumStarts.length;i++) tatumStarts[i] = tatums[i].time;
+		setPoints(ENTrack.FEATURE_TATUMS, tatumStarts, end);
+
+		ENTrack.ENSection[] sections = track.getSections();
+		if (sections != null) features |= 1 << ENTrack.FEATURE_SECTIONS;
+		int n = sections != null ? sections.length : 0;
+		float[] sectionStarts = new float[n];
+		float[] sectionEnds = new float[n];
+		for (int i=0;i<n;i++) {
+			sectionStarts[i] = sections[i].start;
+			sectionEnds[i] = sections[i].start+sections[i].duration;
+		}
+		starts[ENTrack.FEATURE_SECTIONS] = sectionStarts;
+		ends[ENTrack.FEATURE_SECTIONS] = sectionEnds;
+
+		ENSegmentStore store = track.getSegmentStore();
+		if (store != null) features |= 1 << ENTrack.FEATURE_SEGMENTS;
+		n = store != null ? store.size() : 0;
+		float[] segmentStarts = new float[n];
+		float[] segmentEnds = new float[n];
+		if (store != null) {
+			float[] s = store.getStarts();
+			float[] d = store.getDurations();
+			for (int i=0;i<n;i++) {
+				segmentStarts[i] = s[i];
+				segmentEnds[i] = s[i]+d[i];
+			}
+		}
+		starts[ENTrack.FEATURE_SEGMENTS] = segmentStarts;
+		ends[ENTrack.FEATURE_SEGMENTS] = segmentEnds;
+	}
+
+	/**
+	 * Stores a list of points in time, each one ending where the next one starts.
+	 * The last one ends with the track, or where it starts if the duration is unknown.
+	 */
+	private void setPoints(int feature, float[] s, float end) {
+		float[] e = new float[s.length];
+		for (int i=0;i<s.length-1;i++) e[i] = s[i+1];
+		if (s.length > 0) {
+			float last = s[s.length-1];
+			e[s.length-1] = end > last ? end : last;
+		}
+		starts[feature] = s;
+		ends[feature] = e;
+	}
+
+	private float[] starts(int feature) {
+		float[] s = starts[feature];
+		if (s == null) {
+			throw new IllegalArgumentException("No timeline for feature "+feature);
+		}
+		return s;
+	}
+
+	/**
+	 * Direct access to the start times of a list.
+	 */
+	float[] getStarts(int feature) {
+		return starts(feature);
+	}
+
+	/**
+	 * Direct access to the end times of a list.
+	 */
+	float[] getEnds(int feature) {
+		starts(feature);
+		return ends[feature];
+	}
+
+	/**
+	 * Returns the number of elements of a list.
+	 *
+	 * @param feature One of FEATURE_BARS, FEATURE_BEATS, FEATURE_TATUMS, FEATURE_SECTIONS
+	 * or FEATURE_SEGMENTS.
+	 * @return Number of elements.
+	 */
+	public int count(int feature) {
+		return starts(feature).length;
+	}
+
+	public float getStart(int feature, int index) {
+		return starts(feature)[index];
+	}
+
+	public float getEnd(int feature, int index) {
+		starts(feature);
+		return ends[feature][index];
+	}
+
+	/**
+	 * Finds the element playing at a given time: the last one starting at or before it.
+	 *
+	 * @param feature One of the list features.
+	 * @param time Time in seconds.
+	 * @return Index of the element, -1 if the time is before the first element.
+	 */
+	public int indexAt(int feature, float time) {
+		float[] s = starts(feature);
+		return floor(s, 0, s.length, time);
+	}
+
+	/**
+	 * Finds the first element starting at or after a given time.
+	 *
+	 * @param feature One of the list features.
+	 * @param time Time in seconds.
+	 * @return Index of the element, count(feature) if none starts after the time.
+	 */
+	public int indexAfter(int feature, float time) {
+		float[] s = starts(feature);
+		return ceiling(s, 0, s.length, time);
+	}
+
+	/**
+	 * Finds the elements overlapping a time range.
+	 *
+	 * @param feature One of the list features.
+	 * @param from Start of the range, in seconds.
+	 * @param to End of the range, in seconds, excluded.
+	 * @return The index of the first element and the index after the last element.
+	 * Both are equal if no element overlaps the range.
+	 */
+	public int[] range(int feature, float from, float to) {
+		float[] s = starts(feature);
+		int first = floor(s, 0, s.length, from);
+		if (first < 0 || ends[feature][first] <= from) {
+			first++;
+		}
+		int end = Math.max(first, indexAfter(feature, to));
+		return new int[] {first, end};
+	}
+
+	/**
+	 * Creates a cursor on a list, for lookups at increasing times.
+	 *
+	 * @param feature One of the list features.
+	 * @return A new cursor, before the first element.
+	 */
+	public Cursor cursor(int feature) {
+		return new Cursor(starts(feature));
+	}
+
+	/**
+	 * Last index in [from, to) whose start is at or before time, from-1 if none.
+	 */
+	static int floor(float[] s, int from, int to, float time) {
+		int low = from;
+		int high = to-1;
+		while (low <= high) {
+			int mid = (low+high) >>> 1;
+			if (s[mid] <= time) {
+				low = mid+1;
+			} else {
+				high = mid-1;
+			}
+		}
+		return low-1;
+	}
+
+	/**
+	 * First index in [from, to) whose start is at or after time, to if none.
+	 */
+	static int ceiling(float[] s, int from, int to, float time) {
+		int low = from;
+		int high = to-1;
+		while (low <= high) {
+			int mid = (low+high) >>> 1;
+			if (s[mid] < time) {
+				low = mid+1;
+			} else {
+				high = mid-1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Follows the playback position in one list of the timeline.
+	 *
+	 * Moving forward by a few elements costs one comparison per element, so following
+	 * the playback costs O(1) per frame. Jumps and moves backwards use a binary search.
+	 * A cursor must only be used by one thread.
+	 */
+	public static class Cursor {
+
+		/**
+		 * Number of elements walked before falling back to a binary search.
+		 */
+		private static final int MAX_STEPS = 8;
+
+		private float[] starts;
+		private int index = -1;
+		private boolean changed;
+
+		Cursor(float[] starts) {
+			this.starts = starts;
+		}
+
+		/**
+		 * Moves the cursor to the element playing at a given time.
+		 *
+		 * @param time Time in seconds.
+		 * @return Index of the element, -1 if the time is before the first element.
+		 */
+		public int seek(float time) {
+			int previous = index;
+			int i = index;
+			if (i >= 0 && time < starts[i]) {
+				i = floor(starts, 0, i, time);
+			} else {
+				int steps = 0;
+				while (i+1 < starts.length && starts[i+1] <= time) {
+					if (++steps > MAX_STEPS) {
+						i = floor(starts, i, starts.length, time);
+						break;
+					}
+					i++;
+				}
+			}
+			index = i;
+			changed = i != previous;
+			return i;
+		}
+
+		/**
+		 * Returns the index found by the last call to {@link #seek(float)}.
+		 *
+		 * @return Current index, -1 before the first element.
+		 */
+		public int index() {
+			return index;
+		}
+
+		/**
+		 * Tells if the last call to {@link #seek(float)} moved to another element,
+		 * ie: a new beat started.
+		 *
+		 * @return true if the index changed.
+		 */
+		public boolean changed() {
+			return changed;
+		}
+
+		/**
+		 * Moves the cursor back before the first element.
+		 */
+		public void reset() {
+			index = -1;
+			changed = false;
+		}
+	}
+}
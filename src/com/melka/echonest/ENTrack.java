@@ -26,9 +26,13 @@
 package com.melka.echonest;
 
 import java.io.Serializable;
-import java.io.ObjectOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import processing.core.PApplet;
 import processing.xml.*;
 
@@ -37,6 +41,9 @@ import processing.xml.*;
  * data may vary in the course of the track, this global estimation may not apply well to certain sections
  * of the music.
  * 
+ * Each feature is requested the first time its getter is called. A track can be shared by
+ * several threads: concurrent calls to the same getter wait for a single request.
+ * 
  * @example EchoNestBasics 
  * @author melka
  * 
@@ -84,6 +91,74 @@ public class ENTrack implements Serializable {
 	 */	
 	transient public static final int INVALID_PARAM = 5;
 	
+	/**
+	 * Feature index of the bars.
+	 */
+	transient public static final int FEATURE_BARS = 0;
+	/**
+	 * Feature index of the beats.
+	 */
+	transient public static final int FEATURE_BEATS = 1;
+	/**
+	 * Feature index of the duration.
+	 */
+	transient public static final int FEATURE_DURATION = 2;
+	/**
+	 * Feature index of the end of fade in.
+	 */
+	transient public static final int FEATURE_END_OF_FADE_IN = 3;
+	/**
+	 * Feature index of the key.
+	 */
+	transient public static final int FEATURE_KEY = 4;
+	/**
+	 * Feature index of the loudness.
+	 */
+	transient public static final int FEATURE_LOUDNESS = 5;
+	/**
+	 * Feature index of the metadata.
+	 */
+	transient public static final int FEATURE_METADATA = 6;
+	/**
+	 * Feature index of the mode.
+	 */
+	transient public static final int FEATURE_MODE = 7;
+	/**
+	 * Feature index of the sections.
+	 */
+	transient public static final int FEATURE_SECTIONS = 8;
+	/**
+	 * Feature index of the segments.
+	 */
+	transient public static final int FEATURE_SEGMENTS = 9;
+	/**
+	 * Feature index of the start of fade out.
+	 */
+	transient public static final int FEATURE_START_OF_FADE_OUT = 10;
+	/**
+	 * Feature index of the tatums.
+	 */
+	transient public static final int FEATURE_TATUMS = 11;
+	/**
+	 * Feature index of the tempo.
+	 */
+	transient public static final int FEATURE_TEMPO = 12;
+	/**
+	 * Feature index of the time signature.
+	 */
+	transient public static final int FEATURE_TIME_SIGNATURE = 13;
+	/**
+	 * Number of features available for a track.
+	 */
+	transient public static final int FEATURE_COUNT = 14;
+	/**
+	 * Names of the features, indexed by feature index.
+	 */
+	transient public static final String[] FEATURE_NAMES = {
+		"bars", "beats", "duration", "end_of_fade_in", "key", "loudness", "metadata",
+		"mode", "sections", "segments", "start_of_fade_out", "tatums", "tempo", "time_signature"
+	};
+	
 	transient PApplet parent;
 	
 	transient private String baseUrl;
@@ -95,20 +170,77 @@ public class ENTrack implements Serializable {
 	
 	transient public final String VERSION = "0.1.2";
 	
-	public ENBar[] 			bars;
-	public ENBeat[] 		beats;
-	public ENDuration 		duration;
-	public ENEndOfFadeIn 	endOfFadeIn;
-	public ENStartOfFadeOut startOfFadeOut;
-	public ENKey 			key;
-	public ENLoudness 		loudness;
-	public ENMetadata 		metadata;
-	public ENMode 			mode;
-	public ENSection[] 		sections;
-	public ENSegment[]		segments;
-	public ENTatum[]		tatums;
-	public ENTempo			tempo;
-	public ENTimeSignature	timeSignature;
+	public volatile ENBar[]				bars;
+	public volatile ENBeat[]			beats;
+	public volatile ENDuration			duration;
+	public volatile ENEndOfFadeIn		endOfFadeIn;
+	public volatile ENStartOfFadeOut	startOfFadeOut;
+	public volatile ENKey				key;
+	public volatile ENLoudness			loudness;
+	public volatile ENMetadata			metadata;
+	public volatile ENMode				mode;
+	public volatile ENSection[]			sections;
+	public volatile ENSegment[]			segments;
+	/**
+	 * Compact form of the segments.
+	 */
+	public volatile ENSegmentStore		segmentStore;
+	public volatile ENTatum[]			tatums;
+	public volatile ENTempo				tempo;
+	public volatile ENTimeSignature		timeSignature;
+	
+	/**
+	 * Slot of the {@link ENSegment} objects built from the segment store,
+	 * after the FEATURE_* slots.
+	 */
+	static final int SEGMENT_OBJECTS = FEATURE_COUNT;
+	
+	/**
+	 * The load running or done for each feature, created on first use.
+	 */
+	transient private volatile AtomicReferenceArray<FutureTask<Object>> loads;
+	/**
+	 * The last failure of each feature, created with loads.
+	 */
+	transient private volatile AtomicReferenceArray<Failure> failures;
+	/**
+	 * Features the server refused for this track in an earlier session, one bit per
+	 * feature, read from the saved file.
+	 */
+	transient volatile int refused;
+	
+	/**
+	 * Features the timeline is built from.
+	 */
+	private static final int TIMELINE_FEATURES = 1 << FEATURE_BARS | 1 << FEATURE_BEATS
+			| 1 << FEATURE_DURATION | 1 << FEATURE_TATUMS | 1 << FEATURE_SECTIONS | 1 << FEATURE_SEGMENTS;
+	
+	transient private volatile ENTimeline timeline;
+	transient volatile ENHierarchy hierarchy;
+	
+	/**
+	 * Delay before the first retry of a failed request, in milliseconds.
+	 */
+	static final long RETRY_DELAY = 1000;
+	/**
+	 * Maximum delay between two retries of a failed request, in milliseconds.
+	 */
+	static final long MAX_RETRY_DELAY = 10*60*1000;
+	
+	/**
+	 * A failed request.
+	 */
+	private static final class Failure {
+		final int code;
+		final int attempts;
+		final long retryTime;
+		
+		Failure(int code, int attempts, long retryTime) {
+			this.code = code;
+			this.attempts = attempts;
+			this.retryTime = retryTime;
+		}
+	}
 
 	/**
 	 * Initialize a new class for retrieving track analysis.
@@ -122,20 +254,47 @@ public class ENTrack implements Serializable {
 		setBaseUrl("http://developer.echonest.com/api/");
 		setApiKey(ApiKey);
 		setTrackMD5(TrackMD5);
-		parent.registerDispose(this);
+		if (parent != null) {
+			parent.registerDispose(this);
+		}
 	}
 	
+	/**
+	 * Saves all the loaded features of the track to the track cache of the library
+	 * (see {@link ENNest#setTrackCache(ENTrackCache)}), in the format described in
+	 * {@link ENTrackFile}.
+	 */
 	public void saveTrackAnalysisToDisk() {
-		FileOutputStream fos = null;
-		ObjectOutputStream out = null;
+		ENNest.getTrackCache().put(this);
+	}
+	
+	/**
+	 * Builds the URL of a request for this track.
+	 * 
+	 * @param method The API method, ie: get_bars.
+	 * @param key The key of the pool to use, null to use the key of the track.
+	 * @return The full URL.
+	 */
+	String requestUrl(String method, ENApiKeyPool.Key key) {
+		String k = key != null ? key.getKey() : getApiKey();
+		return getBaseUrl()+method+"?api_key="+k+"&md5="+getTrackMD5()+"&version=3&analysis_version="+analysis_version;
+	}
+	
+	/**
+	 * Sends a request for this track, with the next key of the pool if there is one
+	 * (see {@link ENNest#setApiKeyPool(ENApiKeyPool)}).
+	 * 
+	 * @param method The API method, ie: get_bars.
+	 * @return The response, null if the request failed.
+	 */
+	XMLElement request(String method) {
+		ENApiKeyPool.Key key;
 		try {
-			fos = new FileOutputStream("/Library/Application Support/Processing/EchoNest/"+trackMD5+".enp5");
-			out = new ObjectOutputStream(fos);
-			out.writeObject(this);
-			out.close();
-		} catch (IOException ex) {
-			ex.printStackTrace();
+			key = ENRequest.selectKey(getTrackMD5());
+		} catch (InterruptedIOException e) {
+			return null;
 		}
+		return ENRequest.get(requestUrl(method, key), key);
 	}
 	
 	/**
@@ -144,26 +303,11 @@ public class ENTrack implements Serializable {
 	 * @return An array of {@link ENBar} objects.
 	 */
 	public ENBar[] getBars() {
-		if (bars == null) {
-			XMLElement data = new XMLElement(parent,getBaseUrl()+"get_bars?api_key="+getApiKey()+"&md5="+getTrackMD5()+"&version=3&analysis_version="+analysis_version);
-			if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == SUCCESS) {
-				int nbBars = data.getChild("analysis").getChildCount();
-				bars = new ENBar[nbBars];
-				for (int i=0;i<nbBars;i++){
-					float confidence = data.getChild("analysis").getChild(i).getFloatAttribute("confidence");
-					float time = Float.parseFloat(data.getChild("analysis").getChild(i).getContent());
-					bars[i] = new ENBar(confidence, time);
-				}
-				System.out.println(">> LOADED "+nbBars+" BARS");
-				return bars;
-			} else {
-				System.err.println(">> ERROR. CODE "+Integer.parseInt(data.getChild("status").getChild("code").getContent()));
-			}
-		} else {
-			System.err.println(">> BARS ALREADY LOADED");
-			return bars;
+		ENBar[] value = bars;
+		if (value != null) {
+			return value;
 		}
-		return null;
+		return (ENBar[]) load(FEATURE_BARS);
 	}
 	
 	/**
@@ -172,26 +316,11 @@ public class ENTrack implements Serializable {
 	 * @return An array of {@link ENBeat} objects.
 	 */
 	public ENBeat[] getBeats() {
-		if (beats == null) {
-			XMLElement data = new XMLElement(parent,getBaseUrl()+"get_beats?api_key="+getApiKey()+"&md5="+getTrackMD5()+"&version=3&analysis_version="+analysis_version);
-			if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == SUCCESS) {
-				int nbBeats = data.getChild("analysis").getChildCount();
-				beats = new ENBeat[nbBeats];
-				for (int i=0;i<nbBeats;i++){
-					float confidence = data.getChild("analysis").getChild(i).getFloatAttribute("confidence");
-					float time = Float.parseFloat(data.getChild("analysis").getChild(i).getContent());
-					beats[i] = new ENBeat(confidence, time);
-				}
-				System.out.println(">> LOADED "+nbBeats+" BEATS");
-				return beats;
-			} else {
-				System.err.println(">> ERROR. CODE "+Integer.parseInt(data.getChild("status").getChild("code").getContent()));
-			}
-		} else {
-			System.err.println(">> BEATS ALREADY LOADED");
-			return beats;
+		ENBeat[] value = beats;
+		if (value != null) {
+			return value;
 		}
-		return null;
+		return (ENBeat[]) load(FEATURE_BEATS);
 	}
 	
 	/**
@@ -200,21 +329,11 @@ public class ENTrack implements Serializable {
 	 * @return An {@link ENDuration} object.
 	 */
 	public ENDuration getDuration() {
-		if (duration == null) {
-			XMLElement data = new XMLElement(parent,getBaseUrl()+"get_duration?api_key="+getApiKey()+"&md5="+getTrackMD5()+"&version=3&analysis_version="+analysis_version);
-			if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == SUCCESS) {
-				float time = Float.parseFloat(data.getChild("analysis").getChild("duration").getContent());
-				duration = new ENDuration(time);
-				System.out.println(">> DURATION : "+duration.duration);
-				return duration;
-			} else {
-				System.err.println(">> ERROR. CODE "+Integer.parseInt(data.getChild("status").getChild("code").getContent()));
-			}
-		} else {
-			System.err.println(">> DURATION ALREADY LOADED");
-			return duration;
+		ENDuration value = duration;
+		if (value != null) {
+			return value;
 		}
-		return null;
+		return (ENDuration) load(FEATURE_DURATION);
 	}
 	
 	/**
@@ -223,21 +342,11 @@ public class ENTrack implements Serializable {
 	 * @return An {@link ENEndOfFadeIn} object.
 	 */
 	public ENEndOfFadeIn getEndOfFadeIn() {
-		if (endOfFadeIn == null) {
-			XMLElement data = new XMLElement(parent,getBaseUrl()+"get_end_of_fade_in?api_key="+getApiKey()+"&md5="+getTrackMD5()+"&version=3&analysis_version="+analysis_version);
-			if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == SUCCESS) {
-				float time = Float.parseFloat(data.getChild("analysis").getChild("end_of_fade_in").getContent());
-				endOfFadeIn = new ENEndOfFadeIn(time);
-				System.out.println(">> END OF FADE IN : "+endOfFadeIn.time);
-				return endOfFadeIn;
-			} else {
-				System.err.println(">> ERROR. CODE "+Integer.parseInt(data.getChild("status").getChild("code").getContent()));
-			}
-		} else {
-			System.err.println(">> END OF FADE IN ALREADY LOADED");
-			return endOfFadeIn;
+		ENEndOfFadeIn value = endOfFadeIn;
+		if (value != null) {
+			return value;
 		}
-		return null;
+		return (ENEndOfFadeIn) load(FEATURE_END_OF_FADE_IN);
 	}
 	
 	/**
@@ -246,22 +355,11 @@ public class ENTrack implements Serializable {
 	 * @return An {@link ENKey} object.
 	 */
 	public ENKey getKey() {
-		if (key == null) {
-			XMLElement data = new XMLElement(parent,getBaseUrl()+"get_key?api_key="+getApiKey()+"&md5="+getTrackMD5()+"&version=3&analysis_version="+analysis_version);
-			if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == SUCCESS) {
-				float confidence = data.getChild("analysis").getChild("key").getFloatAttribute("confidence");
-				int keyValue = Integer.parseInt(data.getChild("analysis").getChild("key").getContent());
-				key = new ENKey(confidence, keyValue);
-				System.out.println(">> KEY : "+key.confidence+"/"+key.key);
-				return key;
-			} else {
-				System.err.println(">> ERROR. CODE "+Integer.parseInt(data.getChild("status").getChild("code").getContent()));
-			}
-		} else {
-			System.err.println(">> KEY ALREADY LOADED");
-			return key;
+		ENKey value = key;
+		if (value != null) {
+			return value;
 		}
-		return null;
+		return (ENKey) load(FEATURE_KEY);
 	}
 	
 	/**
@@ -270,21 +368,11 @@ public class ENTrack implements Serializable {
 	 * @return An {@link ENLoudness} object.
 	 */
 	public ENLoudness getLoudness() {
-		if (loudness == null) {
-			XMLElement data = new XMLElement(parent,getBaseUrl()+"get_loudness?api_key="+getApiKey()+"&md5="+getTrackMD5()+"&version=3&analysis_version="+analysis_version);
-			if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == SUCCESS) {
-				float value = Float.parseFloat(data.getChild("analysis").getChild("loudness").getContent());
-				loudness = new ENLoudness(value);
-				System.out.println(">> LOUDNESS : "+loudness.loudness);
-				return loudness;
-			} else {
-				System.err.println(">> ERROR. CODE "+Integer.parseInt(data.getChild("status").getChild("code").getContent()));
-			}
-		} else {
-			System.err.println(">> LOUDNESS ALREADY LOADED");
-			return loudness;
+		ENLoudness value = loudness;
+		if (value != null) {
+			return value;
 		}
-		return null;
+		return (ENLoudness) load(FEATURE_LOUDNESS);
 	}
 	
 	/**
@@ -293,41 +381,11 @@ public class ENTrack implements Serializable {
 	 * @return An {@link ENMetadata} object.
 	 */
 	public ENMetadata getMetadata() {
-		if (metadata == null) {
-			XMLElement data = new XMLElement(parent,getBaseUrl()+"get_metadata?api_key="+getApiKey()+"&md5="+getTrackMD5()+"&version=3&analysis_version="+analysis_version);
-			if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == SUCCESS) {
-				String status = data.getChild("analysis").getChild("status").getContent();
-				String id = data.getChild("analysis").getChild("id").getContent();
-				String md5 = data.getChild("analysis").getChild("md5").getContent();
-				String artist = null;
-				String release = null;
-				String title = null;
-				String genre = null;
-				float duration = 0;
-				int samplerate = 0;
-				int bitrate = 0;
-				try {
-					artist = data.getChild("analysis").getChild("artist").getContent();
-					release = data.getChild("analysis").getChild("release").getContent();
-					title = data.getChild("analysis").getChild("title").getContent();
-					genre = data.getChild("analysis").getChild("genre").getContent();
-					duration = Float.parseFloat(data.getChild("analysis").getChild("duration").getContent());
-					samplerate = Integer.parseInt(data.getChild("analysis").getChild("samplerate").getContent());
-					bitrate = Integer.parseInt(data.getChild("analysis").getChild("bitrate").getContent());
-				} catch (NullPointerException e) {
-					e.printStackTrace();
-				}
-				metadata = new ENMetadata(status, id, md5, artist, release, title, genre, duration, samplerate, bitrate);
-				System.out.println(">> METADATA LOADED : Artist = "+metadata.artist);
-				return metadata;
-			} else {
-				System.err.println(">> ERROR. CODE "+Integer.parseInt(data.getChild("status").getChild("code").getContent()));
-			}
-		} else {
-			System.err.println(">> METADATA ALREADY LOADED");
-			return metadata;
+		ENMetadata value = metadata;
+		if (value != null) {
+			return value;
 		}
-		return null;
+		return (ENMetadata) load(FEATURE_METADATA);
 	}
 	
 	/**
@@ -336,22 +394,11 @@ public class ENTrack implements Serializable {
 	 * @return An {@link ENMode} object.
 	 */
 	public ENMode getMode() {
-		if (mode == null) {
-			XMLElement data = new XMLElement(parent,getBaseUrl()+"get_mode?api_key="+getApiKey()+"&md5="+getTrackMD5()+"&version=3&analysis_version="+analysis_version);
-			if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == SUCCESS) {
-				float confidence = data.getChild("analysis").getChild("mode").getFloatAttribute("confidence");
-				int modeValue = Integer.parseInt(data.getChild("analysis").getChild("mode").getContent());
-				mode = new ENMode(confidence, modeValue);
-				System.out.println(">> MODE : "+mode.confidence+"/"+mode.mode);
-				return mode;
-			} else {
-				System.err.println(">> ERROR. CODE "+Integer.parseInt(data.getChild("status").getChild("code").getContent()));
-			}
-		} else {
-			System.err.println(">> MODE ALREADY LOADED");
-			return mode;
+		ENMode value = mode;
+		if (value != null) {
+			return value;
 		}
-		return null;
+		return (ENMode) load(FEATURE_MODE);
 	}
 	
 	/**
@@ -360,72 +407,39 @@ public class ENTrack implements Serializable {
 	 * @return An array of {@link ENSection} objects.
 	 */
 	public ENSection[] getSections() {
-		if (sections == null) {
-			XMLElement data = new XMLElement(parent,getBaseUrl()+"get_sections?api_key="+getApiKey()+"&md5="+getTrackMD5()+"&version=3&analysis_version="+analysis_version);
-			if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == SUCCESS) {
-				int nbSections = data.getChild("analysis").getChildCount();
-				sections = new ENSection[nbSections];
-				for (int i=0;i<nbSections;i++){
-					float startTime = data.getChild("analysis").getChild(i).getFloatAttribute("start");
-					float duration = data.getChild("analysis").getChild(i).getFloatAttribute("duration");
-					sections[i] = new ENSection(startTime, duration);
-				}
-				System.out.println(">> LOADED "+nbSections+" SECTIONS");
-				return sections;
-			} else {
-				System.err.println(">> ERROR. CODE "+Integer.parseInt(data.getChild("status").getChild("code").getContent()));
-			}
-		} else {
-			System.err.println(">> SECTIONS ALREADY LOADED");
-			return sections;
+		ENSection[] value = sections;
+		if (value != null) {
+			return value;
 		}
-		return null;
+		return (ENSection[]) load(FEATURE_SECTIONS);
 	}
 	
 	/**
 	 * Retrieve all the segments of the audio file.
+	 * The segments are created from the {@link ENSegmentStore} of the track, use
+	 * {@link #getSegmentStore()} instead when loading many tracks.
 	 * 
 	 * @return An array of {@link ENSegment} objects.
 	 */
 	public ENSegment[] getSegments() {
-		if (segments == null) {
-			XMLElement data = new XMLElement(parent,getBaseUrl()+"get_segments?api_key="+getApiKey()+"&md5="+getTrackMD5()+"&version=3&analysis_version="+analysis_version);
-			if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == SUCCESS) {
-				int nbSegments = data.getChild("analysis").getChildCount();
-				segments = new ENSegment[nbSegments];
-				for (int i=0;i<nbSegments;i++){
-					XMLElement s = data.getChild("analysis").getChild(i);
-					float start = s.getFloatAttribute("start");
-					float duration = s.getFloatAttribute("duration");
-					
-					float avLoudness = Float.parseFloat(s.getChild("loudness").getChild(0).getContent());
-					float avTime = s.getChild("loudness").getChild(0).getFloatAttribute("time");
-					ENSegmentLoudness average = new ENSegmentLoudness(avLoudness, avTime, "average");
-					
-					float maxLoudness = Float.parseFloat(s.getChild("loudness").getChild(1).getContent());
-					float maxTime = s.getChild("loudness").getChild(1).getFloatAttribute("time");
-					ENSegmentLoudness max = new ENSegmentLoudness(maxLoudness, maxTime, "maximum");
-					
-					float[] pitches = new float[12];
-					float[] timbres = new float[12];
-					
-					for (int j=0;j<12;j++) {
-						pitches[j] = Float.parseFloat(s.getChild("pitches").getChild(j).getContent());
-						timbres[j] = Float.parseFloat(s.getChild("timbre").getChild(j).getContent());
-					}
-					
-					segments[i] = new ENSegment(start, duration, average, max, pitches, timbres);
-				}
-				System.out.println(">> LOADED "+nbSegments+" SEGMENTS");
-				return segments;
-			} else {
-				System.err.println(">> ERROR. CODE "+Integer.parseInt(data.getChild("status").getChild("code").getContent()));
-			}
-		} else {
-			System.err.println(">> SEGMENTS ALREADY LOADED");
-			return segments;
+		ENSegment[] value = segments;
+		if (value != null) {
+			return value;
 		}
-		return null;
+		return (ENSegment[]) load(SEGMENT_OBJECTS);
+	}
+	
+	/**
+	 * Retrieve all the segments of the audio file, in compact form.
+	 * 
+	 * @return An {@link ENSegmentStore} holding all the segments.
+	 */
+	public ENSegmentStore getSegmentStore() {
+		ENSegmentStore value = segmentStore;
+		if (value != null) {
+			return value;
+		}
+		return (ENSegmentStore) load(FEATURE_SEGMENTS);
 	}
 	
 	/**
@@ -434,21 +448,11 @@ public class ENTrack implements Serializable {
 	 * @return An {@link ENStartOfFadeOut} object.
 	 */
 	public ENStartOfFadeOut getStartOfFadeOut() {
-		if (startOfFadeOut == null) {
-			XMLElement data = new XMLElement(parent,getBaseUrl()+"get_start_of_fade_out?api_key="+getApiKey()+"&md5="+getTrackMD5()+"&version=3&analysis_version="+analysis_version);
-			if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == SUCCESS) {
-				float time = Float.parseFloat(data.getChild("analysis").getChild("start_of_fade_out").getContent());
-				startOfFadeOut = new ENStartOfFadeOut(time);
-				System.out.println(">> START OF FADE OUT : "+startOfFadeOut.time);
-				return startOfFadeOut;
-			} else {
-				System.err.println(">> ERROR. CODE "+Integer.parseInt(data.getChild("status").getChild("code").getContent()));
-			}
-		} else {
-			System.err.println(">> START OF FADE OUT ALREADY LOADED");
-			return startOfFadeOut;
+		ENStartOfFadeOut value = startOfFadeOut;
+		if (value != null) {
+			return value;
 		}
-		return null;
+		return (ENStartOfFadeOut) load(FEATURE_START_OF_FADE_OUT);
 	}
 	
 	/**
@@ -457,26 +461,11 @@ public class ENTrack implements Serializable {
 	 * @return An array of {@link ENTatum} objects.
 	 */
 	public ENTatum[] getTatums() {
-		if (tatums == null) {
-			XMLElement data = new XMLElement(parent,getBaseUrl()+"get_tatums?api_key="+getApiKey()+"&md5="+getTrackMD5()+"&version=3&analysis_version="+analysis_version);
-			if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == SUCCESS) {
-				int nbTatums = data.getChild("analysis").getChildCount();
-				tatums = new ENTatum[nbTatums];
-				for (int i=0;i<nbTatums;i++){
-					float confidence = data.getChild("analysis").getChild(i).getFloatAttribute("confidence");
-					float time = Float.parseFloat(data.getChild("analysis").getChild(i).getContent());
-					tatums[i] = new ENTatum(confidence, time);
-				}
-				System.out.println(">> LOADED "+nbTatums+" TATUMS");
-				return tatums;
-			} else {
-				System.err.println(">> ERROR. CODE "+Integer.parseInt(data.getChild("status").getChild("code").getContent()));
-			}
-		} else {
-			System.err.println(">> TATUMS ALREADY LOADED");
-			return tatums;
+		ENTatum[] value = tatums;
+		if (value != null) {
+			return value;
 		}
-		return null;
+		return (ENTatum[]) load(FEATURE_TATUMS);
 	}
 	
 	/**
@@ -485,22 +474,11 @@ public class ENTrack implements Serializable {
 	 * @return An {@link ENTempo} object.
 	 */
 	public ENTempo getTempo() {
-		if (tempo == null) {
-			XMLElement data = new XMLElement(parent,getBaseUrl()+"get_tempo?api_key="+getApiKey()+"&md5="+getTrackMD5()+"&version=3&analysis_version="+analysis_version);
-			if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == SUCCESS) {
-				float confidence = data.getChild("analysis").getChild("tempo").getFloatAttribute("confidence");
-				float tempoValue = Float.parseFloat(data.getChild("analysis").getChild("tempo").getContent());
-				tempo = new ENTempo(confidence, tempoValue);
-				System.out.println(">> TEMPO : "+tempo.confidence+"/"+tempo.tempo);
-				return tempo;
-			} else {
-				System.err.println(">> ERROR. CODE "+Integer.parseInt(data.getChild("status").getChild("code").getContent()));
-			}
-		} else {
-			System.err.println(">> TEMPO ALREADY LOADED");
-			return tempo;
+		ENTempo value = tempo;
+		if (value != null) {
+			return value;
 		}
-		return null;
+		return (ENTempo) load(FEATURE_TEMPO);
 	}
 	
 	/**
@@ -509,24 +487,573 @@ public class ENTrack implements Serializable {
 	 * @return An {@link ENTimeSignature} object.
 	 */
 	public ENTimeSignature getTimeSignature() {
-		if (timeSignature == null) {
-			XMLElement data = new XMLElement(parent,getBaseUrl()+"get_time_signature?api_key="+getApiKey()+"&md5="+getTrackMD5()+"&version=3&analysis_version="+analysis_version);
-			if (Integer.parseInt(data.getChild("status").getChild("code").getContent()) == SUCCESS) {
-				float confidence = data.getChild("analysis").getChild("time_signature").getFloatAttribute("confidence");
-				int signature = Integer.parseInt(data.getChild("analysis").getChild("time_signature").getContent());
-				timeSignature = new ENTimeSignature(confidence, signature);
-				System.out.println(">> TIME SIGNATURE : "+timeSignature.confidence+"/"+timeSignature.signature);
-				return timeSignature;
+		ENTimeSignature value = timeSignature;
+		if (value != null) {
+			return value;
+		}
+		return (ENTimeSignature) load(FEATURE_TIME_SIGNATURE);
+	}
+	
+	/**
+	 * Loads a feature once. Concurrent callers wait for the same request and get the
+	 * same value.
+	 * 
+	 * A failed load is remembered: until its retry time (see {@link #getRetryTime(int)}),
+	 * the getter returns null without contacting the server.
+	 * 
+	 * @param feature One of the FEATURE_* indexes, or SEGMENT_OBJECTS.
+	 * @return The loaded value, null if an error occurred.
+	 */
+	private Object load(final int feature) {
+		initSlots();
+		AtomicReferenceArray<FutureTask<Object>> slots = loads;
+		Failure failure = failures.get(feature);
+		if (failure != null && System.currentTimeMillis() < failure.retryTime) {
+			return null;
+		}
+		while (true) {
+			FutureTask<Object> task = slots.get(feature);
+			if (task == null) {
+				task = new FutureTask<Object>(new Callable<Object>() {
+					public Object call() {
+						return fetch(feature);
+					}
+				});
+				if (!slots.compareAndSet(feature, null, task)) {
+					continue;
+				}
+				task.run();
+			}
+			try {
+				Object value = task.get();
+				if (value == null) {
+					slots.compareAndSet(feature, task, null);
+				} else {
+					failures.set(feature, null);
+				}
+				return value;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (ExecutionException e) {
+				slots.compareAndSet(feature, task, null);
+				e.getCause().printStackTrace();
+				fail(feature, UNKNOWN_ERROR);
+				return null;
+			}
+		}
+	}
+	
+	private void initSlots() {
+		if (loads == null) {
+			synchronized (this) {
+				if (loads == null) {
+					failures = new AtomicReferenceArray<Failure>(FEATURE_COUNT+1);
+					loads = new AtomicReferenceArray<FutureTask<Object>>(FEATURE_COUNT+1);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Remembers a failed request. Invalid keys and parameters are permanent failures,
+	 * other errors are retried after a delay doubling with each failure. With a pool
+	 * of keys, an invalid key is left out by the pool and the request is retried with
+	 * another one, until no valid key is left.
+	 * 
+	 * @param feature The feature that failed.
+	 * @param code The Echo Nest return code, UNKNOWN_ERROR if the server was not reached.
+	 */
+	private void fail(int feature, int code) {
+		System.err.println(">> ERROR. CODE "+code);
+		initSlots();
+		Failure previous = failures.get(feature);
+		int attempts = previous != null ? previous.attempts+1 : 1;
+		long retryTime;
+		ENApiKeyPool pool = ENRequest.getApiKeyPool();
+		boolean invalidKey = code == INVALID_KEY && (pool == null || pool.getValidCount() == 0);
+		if (invalidKey || code == INVALID_PARAM || code == MISSING_PARAM || code == NOT_ALLOWED) {
+			retryTime = Long.MAX_VALUE;
+		} else {
+			long delay = Math.min(RETRY_DELAY << Math.min(attempts-1, 20), MAX_RETRY_DELAY);
+			retryTime = System.currentTimeMillis()+delay;
+		}
+		failures.set(feature, new Failure(code, attempts, retryTime));
+	}
+	
+	/**
+	 * Returns the return code of the last failed request for a feature.
+	 * 
+	 * @param feature One of the FEATURE_* indexes.
+	 * @return The Echo Nest return code, SUCCESS if the last request did not fail.
+	 */
+	public int getFailureCode(int feature) {
+		Failure failure = failures != null ? failures.get(feature) : null;
+		return failure != null ? failure.code : SUCCESS;
+	}
+	
+	/**
+	 * Returns the time before which a failed feature is not requested again.
+	 * 
+	 * @param feature One of the FEATURE_* indexes.
+	 * @return Time in milliseconds (see System.currentTimeMillis()), 0 if the last
+	 * request did not fail, Long.MAX_VALUE if the failure is permanent.
+	 */
+	public long getRetryTime(int feature) {
+		Failure failure = failures != null ? failures.get(feature) : null;
+		return failure != null ? failure.retryTime : 0;
+	}
+	
+	/**
+	 * Returns the features the server refused for the track itself, ie: with
+	 * INVALID_PARAM, in this session or an earlier one. They are saved with the track
+	 * and not requested again when it is completed. Invalid keys are not included.
+	 * 
+	 * @return One bit per feature index.
+	 */
+	int refusedBitmap() {
+		int bitmap = refused;
+		AtomicReferenceArray<Failure> f = failures;
+		if (f != null) {
+			for (int i=0;i<FEATURE_COUNT;i++) {
+				Failure failure = f.get(i);
+				if (failure != null && (failure.code == INVALID_PARAM || failure.code == MISSING_PARAM
+						|| failure.code == NOT_ALLOWED)) {
+					bitmap |= 1 << i;
+				}
+			}
+		}
+		return bitmap & ~ENTrackFile.featureBitmap(this);
+	}
+	
+	/**
+	 * Tells if every feature is loaded or refused by the server, ie: completing the
+	 * track would not request anything.
+	 * 
+	 * @return true if nothing is missing.
+	 */
+	boolean isComplete() {
+		return (ENTrackFile.featureBitmap(this) | refusedBitmap()) == (1 << FEATURE_COUNT)-1;
+	}
+	
+	/**
+	 * Forgets the failed requests, so the next call to each getter contacts the server.
+	 */
+	public void clearFailures() {
+		AtomicReferenceArray<Failure> f = failures;
+		if (f != null) {
+			for (int i=0;i<f.length();i++) f.set(i, null);
+		}
+	}
+	
+	/**
+	 * Retrieves a feature and stores it in its field. Only called once at a time for
+	 * each feature, see {@link #load(int)}.
+	 * 
+	 * @param feature One of the FEATURE_* indexes, or SEGMENT_OBJECTS.
+	 * @return The retrieved value, null if an error occurred.
+	 */
+	Object fetch(int feature) {
+		switch (feature) {
+			case FEATURE_BARS:				return fetchBars();
+			case FEATURE_BEATS:				return fetchBeats();
+			case FEATURE_DURATION:			return fetchDuration();
+			case FEATURE_END_OF_FADE_IN:	return fetchEndOfFadeIn();
+			case FEATURE_KEY:				return fetchKey();
+			case FEATURE_LOUDNESS:			return fetchLoudness();
+			case FEATURE_METADATA:			return fetchMetadata();
+			case FEATURE_MODE:				return fetchMode();
+			case FEATURE_SECTIONS:			return fetchSections();
+			case FEATURE_SEGMENTS:			return fetchSegmentStore();
+			case FEATURE_START_OF_FADE_OUT:	return fetchStartOfFadeOut();
+			case FEATURE_TATUMS:			return fetchTatums();
+			case FEATURE_TEMPO:				return fetchTempo();
+			case FEATURE_TIME_SIGNATURE:	return fetchTimeSignature();
+			case SEGMENT_OBJECTS:			return fetchSegments();
+		}
+		throw new IllegalArgumentException("Unknown feature "+feature);
+	}
+	
+	private ENBar[] fetchBars() {
+		XMLElement data = request("get_bars");
+		if (ENRequest.code(data) == SUCCESS) {
+			int nbBars = data.getChild("analysis").getChildCount();
+			ENBar[] loaded = new ENBar[nbBars];
+			for (int i=0;i<nbBars;i++){
+				float confidence = data.getChild("analysis").getChild(i).getFloatAttribute("confidence");
+				float time = Float.parseFloat(data.getChild("analysis").getChild(i).getContent());
+				loaded[i] = new ENBar(confidence, time);
+			}
+			bars = loaded;
+			System.out.println(">> LOADED "+nbBars+" BARS");
+			return bars;
+		} else {
+			fail(FEATURE_BARS, ENRequest.code(data));
+		}
+		return null;
+	}
+	
+	private ENBeat[] fetchBeats() {
+		XMLElement data = request("get_beats");
+		if (ENRequest.code(data) == SUCCESS) {
+			int nbBeats = data.getChild("analysis").getChildCount();
+			ENBeat[] loaded = new ENBeat[nbBeats];
+			for (int i=0;i<nbBeats;i++){
+				float confidence = data.getChild("analysis").getChild(i).getFloatAttribute("confidence");
+				float time = Float.parseFloat(data.getChild("analysis").getChild(i).getContent());
+				loaded[i] = new ENBeat(confidence, time);
+			}
+			beats = loaded;
+			System.out.println(">> LOADED "+nbBeats+" BEATS");
+			return beats;
+		} else {
+			fail(FEATURE_BEATS, ENRequest.code(data));
+		}
+		return null;
+	}
+	
+	private ENDuration fetchDuration() {
+		XMLElement data = request("get_duration");
+		if (ENRequest.code(data) == SUCCESS) {
+			float time = Float.parseFloat(data.getChild("analysis").getChild("duration").getContent());
+			duration = new ENDuration(time);
+			System.out.println(">> DURATION : "+duration.duration);
+			return duration;
+		} else {
+			fail(FEATURE_DURATION, ENRequest.code(data));
+		}
+		return null;
+	}
+	
+	private ENEndOfFadeIn fetchEndOfFadeIn() {
+		XMLElement data = request("get_end_of_fade_in");
+		if (ENRequest.code(data) == SUCCESS) {
+			float time = Float.parseFloat(data.getChild("analysis").getChild("end_of_fade_in").getContent());
+			endOfFadeIn = new ENEndOfFadeIn(time);
+			System.out.println(">> END OF FADE IN : "+endOfFadeIn.time);
+			return endOfFadeIn;
+		} else {
+			fail(FEATURE_END_OF_FADE_IN, ENRequest.code(data));
+		}
+		return null;
+	}
+	
+	private ENKey fetchKey() {
+		XMLElement data = request("get_key");
+		if (ENRequest.code(data) == SUCCESS) {
+			float confidence = data.getChild("analysis").getChild("key").getFloatAttribute("confidence");
+			int keyValue = Integer.parseInt(data.getChild("analysis").getChild("key").getContent());
+			key = new ENKey(confidence, keyValue);
+			System.out.println(">> KEY : "+key.confidence+"/"+key.key);
+			return key;
+		} else {
+			fail(FEATURE_KEY, ENRequest.code(data));
+		}
+		return null;
+	}
+	
+	private ENLoudness fetchLoudness() {
+		XMLElement data = request("get_loudness");
+		if (ENRequest.code(data) == SUCCESS) {
+			float value = Float.parseFloat(data.getChild("analysis").getChild("loudness").getContent());
+			loudness = new ENLoudness(value);
+			System.out.println(">> LOUDNESS : "+loudness.loudness);
+			return loudness;
+		} else {
+			fail(FEATURE_LOUDNESS, ENRequest.code(data));
+		}
+		return null;
+	}
+	
+	private ENMetadata fetchMetadata() {
+		XMLElement data = request("get_metadata");
+		if (ENRequest.code(data) == SUCCESS) {
+			String status = data.getChild("analysis").getChild("status").getContent();
+			String id = data.getChild("analysis").getChild("id").getContent();
+			String md5 = data.getChild("analysis").getChild("md5").getContent();
+			String artist = null;
+			String release = null;
+			String title = null;
+			String genre = null;
+			float duration = 0;
+			int samplerate = 0;
+			int bitrate = 0;
+			try {
+				artist = data.getChild("analysis").getChild("artist").getContent();
+				release = data.getChild("analysis").getChild("release").getContent();
+				title = data.getChild("analysis").getChild("title").getContent();
+				genre = data.getChild("analysis").getChild("genre").getContent();
+				duration = Float.parseFloat(data.getChild("analysis").getChild("duration").getContent());
+				samplerate = Integer.parseInt(data.getChild("analysis").getChild("samplerate").getContent());
+				bitrate = Integer.parseInt(data.getChild("analysis").getChild("bitrate").getContent());
+			} catch (NullPointerException e) {
+				e.printStackTrace();
+			}
+			metadata = new ENMetadata(status, id, md5, artist, release, title, genre, duration, samplerate, bitrate);
+			System.out.println(">> METADATA LOADED : Artist = "+metadata.artist);
+			return metadata;
+		} else {
+			fail(FEATURE_METADATA, ENRequest.code(data));
+		}
+		return null;
+	}
+	
+	private ENMode fetchMode() {
+		XMLElement data = request("get_mode");
+		if (ENRequest.code(data) == SUCCESS) {
+			float confidence = data.getChild("analysis").getChild("mode").getFloatAttribute("confidence");
+			int modeValue = Integer.parseInt(data.getChild("analysis").getChild("mode").getContent());
+			mode = new ENMode(confidence, modeValue);
+			System.out.println(">> MODE : "+mode.confidence+"/"+mode.mode);
+			return mode;
+		} else {
+			fail(FEATURE_MODE, ENRequest.code(data));
+		}
+		return null;
+	}
+	
+	private ENSection[] fetchSections() {
+		XMLElement data = request("get_sections");
+		if (ENRequest.code(data) == SUCCESS) {
+			int nbSections = data.getChild("analysis").getChildCount();
+			ENSection[] loaded = new ENSection[nbSections];
+			for (int i=0;i<nbSections;i++){
+				float startTime = data.getChild("analysis").getChild(i).getFloatAttribute("start");
+				float duration = data.getChild("analysis").getChild(i).getFloatAttribute("duration");
+				loaded[i] = new ENSection(startTime, duration);
+			}
+			sections = loaded;
+			System.out.println(">> LOADED "+nbSections+" SECTIONS");
+			return sections;
+		} else {
+			fail(FEATURE_SECTIONS, ENRequest.code(data));
+		}
+		return null;
+	}
+	
+	private ENSegment[] fetchSegments() {
+		ENSegmentStore store = getSegmentStore();
+		if (store == null) {
+			return null;
+		}
+		segments = store.toSegments(this);
+		return segments;
+	}
+	
+	private ENSegmentStore fetchSegmentStore() {
+		if (segments != null) {
+			segmentStore = ENSegmentStore.fromSegments(segments);
+			return segmentStore;
+		}
+		InputStream in = null;
+		try {
+			ENApiKeyPool.Key key = ENRequest.selectKey(getTrackMD5());
+			in = ENRequest.open(requestUrl("get_segments", key), key);
+			ENSegmentParser parser = new ENSegmentParser();
+			ENSegmentStore parsed = parser.parse(in);
+			ENRequest.report(parser.getCode(), key);
+			if (parsed != null) {
+				segmentStore = parsed;
+				System.out.println(">> LOADED "+segmentStore.size()+" SEGMENTS");
+				return segmentStore;
 			} else {
-				System.err.println(">> ERROR. CODE "+Integer.parseInt(data.getChild("status").getChild("code").getContent()));
+				fail(FEATURE_SEGMENTS, parser.getCode());
 			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(FEATURE_SEGMENTS, UNKNOWN_ERROR);
+		} finally {
+			try {
+				if (in != null) in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return null;
+	}
+	
+	private ENStartOfFadeOut fetchStartOfFadeOut() {
+		XMLElement data = request("get_start_of_fade_out");
+		if (ENRequest.code(data) == SUCCESS) {
+			float time = Float.parseFloat(data.getChild("analysis").getChild("start_of_fade_out").getContent());
+			startOfFadeOut = new ENStartOfFadeOut(time);
+			System.out.println(">> START OF FADE OUT : "+startOfFadeOut.time);
+			return startOfFadeOut;
+		} else {
+			fail(FEATURE_START_OF_FADE_OUT, ENRequest.code(data));
+		}
+		return null;
+	}
+	
+	private ENTatum[] fetchTatums() {
+		XMLElement data = request("get_tatums");
+		if (ENRequest.code(data) == SUCCESS) {
+			int nbTatums = data.getChild("analysis").getChildCount();
+			ENTatum[] loaded = new ENTatum[nbTatums];
+			for (int i=0;i<nbTatums;i++){
+				float confidence = data.getChild("analysis").getChild(i).getFloatAttribute("confidence");
+				float time = Float.parseFloat(data.getChild("analysis").getChild(i).getContent());
+				loaded[i] = new ENTatum(confidence, time);
+			}
+			tatums = loaded;
+			System.out.println(">> LOADED "+nbTatums+" TATUMS");
+			return tatums;
 		} else {
-			System.err.println(">> TIME SIGNATURE ALREADY LOADED");
+			fail(FEATURE_TATUMS, ENRequest.code(data));
+		}
+		return null;
+	}
+	
+	private ENTempo fetchTempo() {
+		XMLElement data = request("get_tempo");
+		if (ENRequest.code(data) == SUCCESS) {
+			float confidence = data.getChild("analysis").getChild("tempo").getFloatAttribute("confidence");
+			float tempoValue = Float.parseFloat(data.getChild("analysis").getChild("tempo").getContent());
+			tempo = new ENTempo(confidence, tempoValue);
+			System.out.println(">> TEMPO : "+tempo.confidence+"/"+tempo.tempo);
+			return tempo;
+		} else {
+			fail(FEATURE_TEMPO, ENRequest.code(data));
+		}
+		return null;
+	}
+	
+	private ENTimeSignature fetchTimeSignature() {
+		XMLElement data = request("get_time_signature");
+		if (ENRequest.code(data) == SUCCESS) {
+			float confidence = data.getChild("analysis").getChild("time_signature").getFloatAttribute("confidence");
+			int signature = Integer.parseInt(data.getChild("analysis").getChild("time_signature").getContent());
+			timeSignature = new ENTimeSignature(confidence, signature);
+			System.out.println(">> TIME SIGNATURE : "+timeSignature.confidence+"/"+timeSignature.signature);
 			return timeSignature;
+		} else {
+			fail(FEATURE_TIME_SIGNATURE, ENRequest.code(data));
 		}
 		return null;
 	}
 	
+	/**
+	 * Tells if a feature is already loaded, without contacting the server.
+	 * 
+	 * @param feature One of the FEATURE_* indexes.
+	 * @return true if the feature is loaded.
+	 */
+	public boolean hasFeature(int feature) {
+		switch (feature) {
+			case FEATURE_BARS:				return bars != null;
+			case FEATURE_BEATS:				return beats != null;
+			case FEATURE_DURATION:			return duration != null;
+			case FEATURE_END_OF_FADE_IN:	return endOfFadeIn != null;
+			case FEATURE_KEY:				return key != null;
+			case FEATURE_LOUDNESS:			return loudness != null;
+			case FEATURE_METADATA:			return metadata != null;
+			case FEATURE_MODE:				return mode != null;
+			case FEATURE_SECTIONS:			return sections != null;
+			case FEATURE_SEGMENTS:			return segmentStore != null || segments != null;
+			case FEATURE_START_OF_FADE_OUT:	return startOfFadeOut != null;
+			case FEATURE_TATUMS:			return tatums != null;
+			case FEATURE_TEMPO:				return tempo != null;
+			case FEATURE_TIME_SIGNATURE:	return timeSignature != null;
+		}
+		throw new IllegalArgumentException("Unknown feature "+feature);
+	}
+	
+	/**
+	 * Returns the timeline of the track, to find the bar, beat, tatum, section or
+	 * segment playing at a given time. It is built on the first call, loading the
+	 * lists if needed, and built again only when a list that was missing is loaded.
+	 * 
+	 * @return The timeline of the track.
+	 */
+	public ENTimeline getTimeline() {
+		ENTimeline t = timeline;
+		if (t == null || (t.features != TIMELINE_FEATURES && timelineFeatures() != t.features)) {
+			t = new ENTimeline(this);
+			timeline = t;
+		}
+		return t;
+	}
+	
+	/**
+	 * Loads the missing features of the timeline, unless they failed recently, and
+	 * returns the ones loaded.
+	 */
+	private int timelineFeatures() {
+		int features = 0;
+		if (getBars() != null) features |= 1 << FEATURE_BARS;
+		if (getBeats() != null) features |= 1 << FEATURE_BEATS;
+		if (getDuration() != null) features |= 1 << FEATURE_DURATION;
+		if (getTatums() != null) features |= 1 << FEATURE_TATUMS;
+		if (getSections() != null) features |= 1 << FEATURE_SECTIONS;
+		if (getSegmentStore() != null) features |= 1 << FEATURE_SEGMENTS;
+		return features;
+	}
+	
+	/**
+	 * Returns the links between the tatums, beats, bars, sections and segments of the
+	 * track. It is built from the timeline on the first call, or read from the saved
+	 * file, and built again only when the timeline is.
+	 * 
+	 * @return The hierarchy of the track.
+	 */
+	public ENHierarchy getHierarchy() {
+		ENHierarchy h = hierarchy;
+		if (h != null && h.timeline == null) {
+			return h;
+		}
+		ENTimeline t = getTimeline();
+		if (h == null || h.timeline != t) {
+			h = new ENHierarchy(t);
+			hierarchy = h;
+		}
+		return h;
+	}
+	
+	/**
+	 * Tells if bars, beats, tatums, sections and segments are all loaded.
+	 */
+	boolean hasLists() {
+		return hasFeature(FEATURE_BARS) && hasFeature(FEATURE_BEATS) && hasFeature(FEATURE_TATUMS)
+				&& hasFeature(FEATURE_SECTIONS) && hasFeature(FEATURE_SEGMENTS);
+	}
+	
+	/**
+	 * Returns the number of segments held by the track, without loading them.
+	 * 
+	 * @return Number of segments, 0 if they are not loaded.
+	 */
+	int segmentCount() {
+		if (segmentStore != null) return segmentStore.size();
+		if (segments != null) return segments.length;
+		return 0;
+	}
+	
+	/**
+	 * Retrieve a feature of the audio file by its index.
+	 * 
+	 * @param feature One of the FEATURE_* indexes.
+	 * @return The value returned by the matching getter, null if an error occurred.
+	 */
+	public Object getFeature(int feature) {
+		switch (feature) {
+			case FEATURE_BARS:				return getBars();
+			case FEATURE_BEATS:				return getBeats();
+			case FEATURE_DURATION:			return getDuration();
+			case FEATURE_END_OF_FADE_IN:	return getEndOfFadeIn();
+			case FEATURE_KEY:				return getKey();
+			case FEATURE_LOUDNESS:			return getLoudness();
+			case FEATURE_METADATA:			return getMetadata();
+			case FEATURE_MODE:				return getMode();
+			case FEATURE_SECTIONS:			return getSections();
+			case FEATURE_SEGMENTS:			return getSegmentStore();
+			case FEATURE_START_OF_FADE_OUT:	return getStartOfFadeOut();
+			case FEATURE_TATUMS:			return getTatums();
+			case FEATURE_TEMPO:				return getTempo();
+			case FEATURE_TIME_SIGNATURE:	return getTimeSignature();
+		}
+		throw new IllegalArgumentException("Unknown feature "+feature);
+	}
+	
 	/**
 	 * Returns the version of the library.
 	 * 
@@ -564,8 +1091,15 @@ public class ENTrack implements Serializable {
 		return apiKey;
 	}
 
+	/**
+	 * Sets the API key used by the requests of the track. The failed requests are
+	 * forgotten, since they may have failed because of the previous key.
+	 * 
+	 * @param apiKey Your Echo Nest API key.
+	 */
 	public void setApiKey(String apiKey) {
 		this.apiKey = apiKey;
+		clearFailures();
 	}
 
 	public String getArtistId() {
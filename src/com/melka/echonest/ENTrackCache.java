@@ -0,0 +1,79 @@
+//
+// ENTrackCache.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+import processing.core.PApplet;
+
+/**
+ * Stores the analysis of the tracks so they are downloaded only once.
+ *
+ * The cache used by the library is set with {@link ENNest#setTrackCache(ENTrackCache)}.
+ * The default one is an {@link ENDirectoryCache}.
+ *
+ * @author melka
+ */
+public interface ENTrackCache {
+
+	/**
+	 * Returns a cached track. Tracks are cached per analysis version, so a track
+	 * analyzed with another version is not returned.
+	 *
+	 * The track may be partial: use {@link ENTrack#hasFeature(int)} to know which
+	 * features it holds.
+	 *
+	 * @param md5 MD5 hash of the audio file.
+	 * @param analysisVersion Version of the analysis.
+	 * @param parent The main PApplet.
+	 * @return The track, or null if it is not in the cache.
+	 */
+	public ENTrack get(String md5, int analysisVersion, PApplet parent);
+
+	/**
+	 * Adds or replaces a track in the cache, under its MD5 and analysis version.
+	 *
+	 * @param track The track to save.
+	 * @return true if the track has been saved.
+	 */
+	public boolean put(ENTrack track);
+
+	/**
+	 * Returns the number of calls to {@link #get(String, int, PApplet)} that found the track.
+	 *
+	 * @return Number of hits.
+	 */
+	public long getHitCount();
+
+	/**
+	 * Returns the number of calls to {@link #get(String, int, PApplet)} that did not find the track.
+	 *
+	 * @return Number of misses.
+	 */
+	public long getMissCount();
+
+	/**
+	 * Returns the number of tracks removed to keep the cache under its maximum size.
+	 *
+	 * @return Number of evictions.
+	 */
+	public long getEvictionCount();
+}
@@ -0,0 +1,507 @@
+//
+// ENTrackFile.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import processing.core.PApplet;
+
+import com.melka.echonest.ENTrack.*;
+
+/**
+ * Binary format of the .enp5 files, where the analysis of the tracks is saved.
+ *
+ * A file starts with a header:
+ * <pre>
+ * int     magic number, "ENP5"
+ * short   format version
+ * int     analysis version
+ * int     feature bitmap, bit n set if feature n is in the file
+ * UTF     track MD5
+ * UTF     artist ID, empty if unknown
+ * int[14] offset of each feature block from the start of the file, 0 if absent
+ * int     offset of the hierarchy block, 0 if absent (since version 2)
+ * int     refused bitmap, bit n set if the server refused feature n (since version 3)
+ * </pre>
+ * followed by one block per feature, in feature order, then the hierarchy block.
+ * Lists (bars, beats, tatums, sections, segments) are stored as a count followed by
+ * one column of floats per value. Segment pitches and timbres are stored as flat
+ * columns of 12 values per segment. The hierarchy block holds the 8 tables of
+ * {@link ENHierarchy}, each as a count followed by the ints. All the values are
+ * big-endian.
+ *
+ * Files written by older versions of the library with Java serialization are still read.
+ *
+ * @author melka
+ */
+public final class ENTrackFile {
+
+	/**
+	 * First bytes of every file: "ENP5".
+	 */
+	public static final int MAGIC = 0x454E5035;
+	/**
+	 * Version of the format written by this class.
+	 */
+	public static final short FORMAT_VERSION = 3;
+
+	private ENTrackFile() {
+	}
+
+	/**
+	 * Returns the features present in a track, one bit per feature index.
+	 *
+	 * @param track A track.
+	 * @return The feature bitmap.
+	 */
+	public static int featureBitmap(ENTrack track) {
+		int bitmap = 0;
+		for (int i=0;i<ENTrack.FEATURE_COUNT;i++) {
+			if (track.hasFeature(i)) {
+				bitmap |= 1 << i;
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Writes all the loaded features of a track.
+	 *
+	 * @param track The track to write.
+	 * @param out The destination. It is not closed.
+	 * @throws IOException
+	 */
+	public static void write(ENTrack track, OutputStream out) throws IOException {
+		if (track instanceof ENMappedTrack) {
+			((ENMappedTrack) track).decodeAll();
+		}
+		byte[][] blocks = new byte[ENTrack.FEATURE_COUNT+1][];
+		for (int i=0;i<ENTrack.FEATURE_COUNT;i++) {
+			if (track.hasFeature(i)) {
+				ByteArrayOutputStream block = new ByteArrayOutputStream();
+				DataOutputStream data = new DataOutputStream(block);
+				writeFeature(track, i, data);
+				data.flush();
+				blocks[i] = block.toByteArray();
+			}
+		}
+		// the duration is checked so that building the hierarchy sends no request, and a
+		// hierarchy built before all the lists were loaded is not saved
+		ENHierarchy hierarchy = track.hierarchy;
+		if ((hierarchy != null && hierarchy.timeline == null)
+				|| (track.hasLists() && track.hasFeature(ENTrack.FEATURE_DURATION))) {
+			ByteArrayOutputStream block = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(block);
+			writeHierarchy(track.getHierarchy(), data);
+			data.flush();
+			blocks[ENTrack.FEATURE_COUNT] = block.toByteArray();
+		}
+
+		int[] offsets = new int[blocks.length];
+		int offset = writeHeader(track, offsets).length;
+		for (int i=0;i<blocks.length;i++) {
+			if (blocks[i] != null) {
+				offsets[i] = offset;
+				offset += blocks[i].length;
+			}
+		}
+		out.write(writeHeader(track, offsets));
+		for (int i=0;i<blocks.length;i++) {
+			if (blocks[i] != null) {
+				out.write(blocks[i]);
+			}
+		}
+		out.flush();
+	}
+
+	private static byte[] writeHeader(ENTrack track, int[] offsets) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(header);
+		data.writeInt(MAGIC);
+		data.writeShort(FORMAT_VERSION);
+		data.writeInt(track.getAnalysisVersion());
+		data.writeInt(featureBitmap(track));
+		data.writeUTF(track.getTrackMD5() != null ? track.getTrackMD5() : "");
+		data.writeUTF(track.getArtistId() != null ? track.getArtistId() : "");
+		for (int i=0;i<=ENTrack.FEATURE_COUNT;i++) {
+			data.writeInt(offsets[i]);
+		}
+		data.writeInt(track.refusedBitmap());
+		data.flush();
+		return header.toByteArray();
+	}
+
+	private static void writeHierarchy(ENHierarchy h, DataOutputStream out) throws IOException {
+		int[][] tables = {
+			h.tatumBeat, h.beatBar, h.barSection, h.segmentBeat,
+			h.beatTatums, h.barBeats, h.sectionBars, h.beatSegments
+		};
+		for (int i=0;i<tables.length;i++) {
+			out.writeInt(tables[i].length);
+			for (int j=0;j<tables[i].length;j++) {
+				out.writeInt(tables[i][j]);
+			}
+		}
+	}
+
+	private static void writeFeature(ENTrack track, int feature, DataOutputStream out) throws IOException {
+		switch (feature) {
+			case ENTrack.FEATURE_BARS:
+				out.writeInt(track.bars.length);
+				for (int i=0;i<track.bars.length;i++) out.writeFloat(track.bars[i].time);
+				for (int i=0;i<track.bars.length;i++) out.writeFloat(track.bars[i].confidence);
+				break;
+			case ENTrack.FEATURE_BEATS:
+				out.writeInt(track.beats.length);
+				for (int i=0;i<track.beats.length;i++) out.writeFloat(track.beats[i].time);
+				for (int i=0;i<track.beats.length;i++) out.writeFloat(track.beats[i].confidence);
+				break;
+			case ENTrack.FEATURE_TATUMS:
+				out.writeInt(track.tatums.length);
+				for (int i=0;i<track.tatums.length;i++) out.writeFloat(track.tatums[i].time);
+				for (int i=0;i<track.tatums.length;i++) out.writeFloat(track.tatums[i].confidence);
+				break;
+			case ENTrack.FEATURE_SECTIONS:
+				out.writeInt(track.sections.length);
+				for (int i=0;i<track.sections.length;i++) out.writeFloat(track.sections[i].start);
+				for (int i=0;i<track.sections.length;i++) out.writeFloat(track.sections[i].duration);
+				break;
+			case ENTrack.FEATURE_SEGMENTS:
+				ENSegmentStore s = track.segmentStore;
+				if (s == null) {
+					s = ENSegmentStore.fromSegments(track.segments);
+				}
+				int n = s.size();
+				out.writeInt(n);
+				writeColumn(out, s.getStarts(), n);
+				writeColumn(out, s.getDurations(), n);
+				writeColumn(out, s.getAverageLoudnesses(), n);
+				for (int i=0;i<n;i++) out.writeFloat(s.getAverageLoudnessTime(i));
+				writeColumn(out, s.getMaxLoudnesses(), n);
+				for (int i=0;i<n;i++) out.writeFloat(s.getMaxLoudnessTime(i));
+				writeColumn(out, s.getPitches(), n*ENSegmentStore.DIMENSIONS);
+				writeColumn(out, s.getTimbres(), n*ENSegmentStore.DIMENSIONS);
+				break;
+			case ENTrack.FEATURE_DURATION:
+				out.writeFloat(track.duration.duration);
+				break;
+			case ENTrack.FEATURE_END_OF_FADE_IN:
+				out.writeFloat(track.endOfFadeIn.time);
+				break;
+			case ENTrack.FEATURE_START_OF_FADE_OUT:
+				out.writeFloat(track.startOfFadeOut.time);
+				break;
+			case ENTrack.FEATURE_KEY:
+				out.writeFloat(track.key.confidence);
+				out.writeInt(track.key.key);
+				break;
+			case ENTrack.FEATURE_LOUDNESS:
+				out.writeFloat(track.loudness.loudness);
+				break;
+			case ENTrack.FEATURE_MODE:
+				out.writeFloat(track.mode.confidence);
+				out.writeInt(track.mode.mode);
+				break;
+			case ENTrack.FEATURE_TEMPO:
+				out.writeFloat(track.tempo.confidence);
+				out.writeFloat(track.tempo.tempo);
+				break;
+			case ENTrack.FEATURE_TIME_SIGNATURE:
+				out.writeFloat(track.timeSignature.confidence);
+				out.writeFloat(track.timeSignature.signature);
+				break;
+			case ENTrack.FEATURE_METADATA:
+				ENMetadata m = track.metadata;
+				writeString(out, m.status);
+				writeString(out, m.id);
+				writeString(out, m.md5);
+				writeString(out, m.artist);
+				writeString(out, m.release);
+				writeString(out, m.title);
+				writeString(out, m.genre);
+				out.writeFloat(m.duration);
+				out.writeInt(m.samplerate);
+				out.writeInt(m.bitrate);
+				break;
+		}
+	}
+
+	private static void writeColumn(DataOutputStream out, float[] column, int length) throws IOException {
+		for (int i=0;i<length;i++) {
+			out.writeFloat(column[i]);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) out.writeUTF(s);
+	}
+
+	/**
+	 * Reads a track, in this format or in the Java serialization format of the
+	 * older versions of the library.
+	 *
+	 * @param in The source. It is not closed.
+	 * @param parent The main PApplet.
+	 * @return The track.
+	 * @throws IOException If the data is not a track.
+	 */
+	public static ENTrack read(InputStream in, PApplet parent) throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(in, 64*1024);
+		buffered.mark(4);
+		DataInputStream data = new DataInputStream(buffered);
+		int magic = data.readInt();
+		if (magic != MAGIC) {
+			buffered.reset();
+			if ((magic >>> 16) == 0xACED) {
+				return readLegacy(buffered);
+			}
+			throw new IOException("Not an .enp5 file");
+		}
+		ENTrack track = new ENTrack(parent, null, null);
+		int[] offsets = readHeader(data, track);
+		for (int i=0;i<ENTrack.FEATURE_COUNT;i++) {
+			if (offsets[i] != 0) {
+				readFeature(track, i, data);
+			}
+		}
+		if (offsets[ENTrack.FEATURE_COUNT] != 0) {
+			track.hierarchy = readHierarchy(data);
+		}
+		return track;
+	}
+
+	/**
+	 * Opens a saved track. Files in this format are memory-mapped and returned as an
+	 * {@link ENMappedTrack}, which decodes the lists only when they are used.
+	 * Legacy files are read completely.
+	 *
+	 * @param file The .enp5 file.
+	 * @param parent The main PApplet.
+	 * @return The track.
+	 * @throws IOException If the file cannot be read or is not a track.
+	 */
+	public static ENTrack open(File file, PApplet parent) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() >= 4 && buffer.getInt(0) == MAGIC) {
+				return new ENMappedTrack(parent, buffer);
+			}
+			return read(in, parent);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the header of a file, after the magic number, into a track.
+	 *
+	 * @param in The source, positioned after the magic number.
+	 * @param track The track receiving the analysis version, MD5 and artist ID.
+	 * @return The offset of each feature block, 0 for absent features, followed by the
+	 * offset of the hierarchy block, 0 if absent or before version 2.
+	 * @throws IOException
+	 */
+	static int[] readHeader(DataInputStream in, ENTrack track) throws IOException {
+		short version = in.readShort();
+		if (version > FORMAT_VERSION) {
+			throw new IOException("Unsupported .enp5 format version "+version);
+		}
+		track.setAnalysisVersion(in.readInt());
+		int bitmap = in.readInt();
+		String md5 = in.readUTF();
+		String artistId = in.readUTF();
+		track.setTrackMD5(md5.length() > 0 ? md5 : null);
+		track.setArtistId(artistId.length() > 0 ? artistId : null);
+		int[] offsets = new int[ENTrack.FEATURE_COUNT+1];
+		for (int i=0;i<ENTrack.FEATURE_COUNT;i++) {
+			offsets[i] = in.readInt();
+			if ((bitmap & (1 << i)) == 0) {
+				offsets[i] = 0;
+			}
+		}
+		if (version >= 2) {
+			offsets[ENTrack.FEATURE_COUNT] = in.readInt();
+		}
+		if (version >= 3) {
+			track.refused = in.readInt();
+		}
+		return offsets;
+	}
+
+	/**
+	 * Reads the hierarchy block.
+	 *
+	 * @param in The source, positioned at the start of the block.
+	 * @return The hierarchy.
+	 * @throws IOException
+	 */
+	static ENHierarchy readHierarchy(DataInputStream in) throws IOException {
+		int[][] tables = new int[8][];
+		for (int i=0;i<tables.length;i++) {
+			int n = in.readInt();
+			if (n < 0) {
+				throw new IOException("Corrupted hierarchy block");
+			}
+			tables[i] = new int[n];
+			for (int j=0;j<n;j++) {
+				tables[i][j] = in.readInt();
+			}
+		}
+		return new ENHierarchy(tables[0], tables[1], tables[2], tables[3],
+				tables[4], tables[5], tables[6], tables[7]);
+	}
+
+	private static ENTrack readLegacy(InputStream in) throws IOException {
+		try {
+			return (ENTrack) new ObjectInputStream(in).readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Not an .enp5 file");
+		} catch (ClassCastException e) {
+			throw new IOException("Not an .enp5 file");
+		}
+	}
+
+	/**
+	 * Reads one feature block into a track.
+	 *
+	 * @param track The track to fill.
+	 * @param feature The feature index.
+	 * @param in The source, positioned at the start of the block.
+	 * @throws IOException
+	 */
+	static void readFeature(ENTrack track, int feature, DataInputStream in) throws IOException {
+		int n;
+		float[] a;
+		float[] b;
+		switch (feature) {
+			case ENTrack.FEATURE_BARS:
+				n = in.readInt();
+				a = readColumn(in, n);
+				b = readColumn(in, n);
+				ENBar[] bars = new ENBar[n];
+				for (int i=0;i<n;i++) bars[i] = track.new ENBar(b[i], a[i]);
+				track.bars = bars;
+				break;
+			case ENTrack.FEATURE_BEATS:
+				n = in.readInt();
+				a = readColumn(in, n);
+				b = readColumn(in, n);
+				ENBeat[] beats = new ENBeat[n];
+				for (int i=0;i<n;i++) beats[i] = track.new ENBeat(b[i], a[i]);
+				track.beats = beats;
+				break;
+			case ENTrack.FEATURE_TATUMS:
+				n = in.readInt();
+				a = readColumn(in, n);
+				b = readColumn(in, n);
+				ENTatum[] tatums = new ENTatum[n];
+				for (int i=0;i<n;i++) tatums[i] = track.new ENTatum(b[i], a[i]);
+				track.tatums = tatums;
+				break;
+			case ENTrack.FEATURE_SECTIONS:
+				n = in.readInt();
+				a = readColumn(in, n);
+				b = readColumn(in, n);
+				ENSection[] sections = new ENSection[n];
+				for (int i=0;i<n;i++) sections[i] = track.new ENSection(a[i], b[i]);
+				track.sections = sections;
+				break;
+			case ENTrack.FEATURE_SEGMENTS:
+				n = in.readInt();
+				float[] start = readColumn(in, n);
+				float[] length = readColumn(in, n);
+				float[] averageLoudness = readColumn(in, n);
+				float[] averageLoudnessTime = readColumn(in, n);
+				float[] maxLoudness = readColumn(in, n);
+				float[] maxLoudnessTime = readColumn(in, n);
+				float[] pitches = readColumn(in, n*ENSegmentStore.DIMENSIONS);
+				float[] timbres = readColumn(in, n*ENSegmentStore.DIMENSIONS);
+				track.segmentStore = new ENSegmentStore(n, start, length, averageLoudness, averageLoudnessTime,
+						maxLoudness, maxLoudnessTime, pitches, timbres);
+				break;
+			case ENTrack.FEATURE_DURATION:
+				track.duration = track.new ENDuration(in.readFloat());
+				break;
+			case ENTrack.FEATURE_END_OF_FADE_IN:
+				track.endOfFadeIn = track.new ENEndOfFadeIn(in.readFloat());
+				break;
+			case ENTrack.FEATURE_START_OF_FADE_OUT:
+				track.startOfFadeOut = track.new ENStartOfFadeOut(in.readFloat());
+				break;
+			case ENTrack.FEATURE_KEY:
+				track.key = track.new ENKey(in.readFloat(), in.readInt());
+				break;
+			case ENTrack.FEATURE_LOUDNESS:
+				track.loudness = track.new ENLoudness(in.readFloat());
+				break;
+			case ENTrack.FEATURE_MODE:
+				track.mode = track.new ENMode(in.readFloat(), in.readInt());
+				break;
+			case ENTrack.FEATURE_TEMPO:
+				track.tempo = track.new ENTempo(in.readFloat(), in.readFloat());
+				break;
+			case ENTrack.FEATURE_TIME_SIGNATURE:
+				track.timeSignature = track.new ENTimeSignature(in.readFloat(), in.readFloat());
+				break;
+			case ENTrack.FEATURE_METADATA:
+				String status = readString(in);
+				String id = readString(in);
+				String md5 = readString(in);
+				String artist = readString(in);
+				String release = readString(in);
+				String title = readString(in);
+				String genre = readString(in);
+				float duration = in.readFloat();
+				int samplerate = in.readInt();
+				int bitrate = in.readInt();
+				track.metadata = track.new ENMetadata(status, id, md5, artist, release, title, genre, duration, samplerate, bitrate);
+				break;
+		}
+	}
+
+	private static float[] readColumn(DataInputStream in, int length) throws IOException {
+		float[] column = new float[length];
+		for (int i=0;i<length;i++) {
+			column[i] = in.readFloat();
+		}
+		return column;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -0,0 +1,47 @@
+//
+// ENTrackListener.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+/**
+ * Notified when a track started with {@link ENNest#loadTrackAsync(String, ENTrackListener)}
+ * is loaded. Methods are called from the loading thread.
+ *
+ * @author melka
+ */
+public interface ENTrackListener {
+
+	/**
+	 * Called when all the data of a track is available.
+	 *
+	 * @param filePath The path given to loadTrackAsync.
+	 * @param track The loaded track.
+	 */
+	public void trackLoaded(String filePath, ENTrack track);
+
+	/**
+	 * Called when a track could not be loaded.
+	 *
+	 * @param filePath The path given to loadTrackAsync.
+	 */
+	public void trackFailed(String filePath);
+}
@@ -0,0 +1,211 @@
+//
+// ENTrackLoader.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Loads all the features of an {@link ENTrack} at once.
+ *
+ * Every feature is a separate request on the Echo Nest server. Instead of calling
+ * the getters one after another, the loader sends all the requests in parallel on
+ * a bounded pool of threads and waits for all of them, so loading a track takes
+ * about as long as the slowest request.
+ *
+ * A loader can run several loads at the same time; the timings are those of the
+ * last load that completed.
+ *
+ * @author melka
+ */
+public class ENTrackLoader {
+
+	private static ExecutorService defaultExecutor;
+
+	private ExecutorService executor;
+	private volatile long[] timings = new long[ENTrack.FEATURE_COUNT];
+	private volatile long totalTime;
+
+	/**
+	 * Initializes a loader using the shared pool of the library.
+	 */
+	public ENTrackLoader() {
+		this(getDefaultExecutor());
+	}
+
+	/**
+	 * Initializes a loader running its requests on the given executor.
+	 *
+	 * @param executor The executor to use. Its size bounds the number of parallel requests.
+	 */
+	public ENTrackLoader(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Returns the pool shared by all the loaders, one thread per feature.
+	 * Threads are daemons so they never keep a sketch from exiting.
+	 *
+	 * @return The shared executor.
+	 */
+	public static synchronized ExecutorService getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			defaultExecutor = Executors.newFixedThreadPool(ENTrack.FEATURE_COUNT, ENExecutors.daemonThreadFactory("ENTrackLoader"));
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * Replaces the pool shared by the loaders created without an executor.
+	 *
+	 * @param executor The new shared executor.
+	 */
+	public static synchronized void setDefaultExecutor(ExecutorService executor) {
+		defaultExecutor = executor;
+	}
+
+	/**
+	 * Replaces the shared pool and returns the previous one, null if it was never created.
+	 */
+	static synchronized ExecutorService replaceDefaultExecutor(ExecutorService executor) {
+		ExecutorService previous = defaultExecutor;
+		defaultExecutor = executor;
+		return previous;
+	}
+
+	/**
+	 * Retrieves all the features of a track in parallel.
+	 *
+	 * @param track The track to fill.
+	 * @return true if every feature has been loaded, false if at least one failed.
+	 */
+	public boolean load(ENTrack track) {
+		return load(track, false);
+	}
+
+	/**
+	 * Retrieves in parallel only the features a track does not hold yet, ie: to
+	 * complete a track read from the cache after a partial load. Features the server
+	 * refused for the track are not requested again.
+	 *
+	 * @param track The track to complete.
+	 * @return true if the track now holds every feature, false if at least one failed.
+	 */
+	public boolean loadMissing(ENTrack track) {
+		return load(track, true);
+	}
+
+	private boolean load(final ENTrack track, boolean missingOnly) {
+		long start = System.nanoTime();
+		// each load has its own timings, written by the pool threads before their
+		// result is available to this thread
+		final long[] timings = new long[ENTrack.FEATURE_COUNT];
+		List<Future<Object>> results = new ArrayList<Future<Object>>(ENTrack.FEATURE_COUNT);
+		for (int i=0;i<ENTrack.FEATURE_COUNT;i++) {
+			final int feature = i;
+			if (missingOnly && (track.hasFeature(i) || (track.refusedBitmap() & (1 << i)) != 0)) {
+				timings[i] = 0;
+				results.add(null);
+				continue;
+			}
+			timings[i] = -1;
+			Callable<Object> task = new Callable<Object>() {
+				public Object call() {
+					long t = System.nanoTime();
+					Object value = track.getFeature(feature);
+					timings[feature] = (System.nanoTime()-t)/1000000;
+					return value;
+				}
+			};
+			try {
+				results.add(executor.submit(task));
+			} catch (RejectedExecutionException e) {
+				// the pool was shut down while loading, ie: by ENNest.useVirtualThreads
+				FutureTask<Object> inline = new FutureTask<Object>(task);
+				inline.run();
+				results.add(inline);
+			}
+		}
+		boolean complete = true;
+		for (int i=0;i<ENTrack.FEATURE_COUNT;i++) {
+			Future<Object> result = results.get(i);
+			if (result == null) continue;
+			try {
+				if (result.get() == null) {
+					complete = false;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				complete = false;
+			} catch (CancellationException e) {
+				// the executor was shut down before the request ran
+				complete = false;
+			}
+		}
+		this.timings = timings;
+		totalTime = (System.nanoTime()-start)/1000000;
+		return complete;
+	}
+
+	/**
+	 * Returns the wall-clock time of a feature in the last completed load.
+	 *
+	 * @param feature One of the ENTrack.FEATURE_* indexes.
+	 * @return Time in milliseconds, -1 if the request did not complete, 0 if the
+	 * feature was skipped by {@link #loadMissing(ENTrack)}.
+	 */
+	public long getTiming(int feature) {
+		return timings[feature];
+	}
+
+	/**
+	 * Returns the wall-clock time of the last call to {@link #load(ENTrack)}.
+	 *
+	 * @return Time in milliseconds.
+	 */
+	public long getTotalTime() {
+		return totalTime;
+	}
+
+	/**
+	 * Prints the time taken by each feature of the last load.
+	 */
+	public void printTimings() {
+		long[] timings = this.timings;
+		for (int i=0;i<ENTrack.FEATURE_COUNT;i++) {
+			System.out.println(">> "+ENTrack.FEATURE_NAMES[i].toUpperCase()+" : "+timings[i]+" ms");
+		}
+		System.out.println(">> TRACK LOADED IN "+totalTime+" ms");
+	}
+}
@@ -0,0 +1,57 @@
+//
+// ENTransport.java
+// echonestp5
+//
+// The Echo Nest API Processing Wrapper
+// http://the.echonest.com/
+// Copyright (C) 2010 melka - Kamel Makhloufi
+// http://melka.one.free.fr/blog/
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.melka.echonest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+
+/**
+ * Sends the requests of the library to the Echo Nest server.
+ *
+ * All the calls made by {@link ENNest} and {@link ENTrack} go through the transport
+ * set with {@link ENNest#setTransport(ENTransport)}. The default one is an
+ * {@link ENHttpTransport}.
+ *
+ * @author melka
+ */
+public interface ENTransport {
+
+	/**
+	 * Sends a GET request.
+	 *
+	 * @param url The full URL of the request.
+	 * @return The response body. The caller must read it and close it.
+	 * @throws IOException
+	 */
+	public InputStream get(String url) throws IOException;
+
+	/**
+	 * Opens a connection for a request with a body, like an upload.
+	 *
+	 * @param url The full URL of the request.
+	 * @return A connection ready for output.
+	 * @throws IOException
+	 */
+	public URLConnection open(String url) throws IOException;
+}
@@ -25,9 +25,6 @@
 
 package com.melka.echonest;
 
-import java.io.FileInputStream;
-import java.io.ObjectInputStream;
-import java.io.IOException;
 import java.lang.reflect.Method;
 import com.melka.echonest.ENTrack.*;
 
@@ -59,7 +56,7 @@ public class EchoNest extends Thread {
 	ENMetadata metadata;
 	ENMode mode;
 	ENSection[] sections;
-	ENSegment[] segments;
+	ENSegmentStore segmentStore;
 	ENStartOfFadeOut startOfFadeOut;
 	ENTatum[] tatums;
 	ENTempo tempo;
@@ -73,9 +70,12 @@ public class EchoNest extends Thread {
 	boolean loaded;
 	
 	/**
-	 * Initializes the EchoNest thread for testing if the file exists on the
+	 * Initializes the EchoNest loader for testing if the file exists on the
 	 * server + downloading all the available data from the Echo Nest servers
-	 * once upload and analysis are done.
+	 * once upload and analysis are done. The sketch is notified through its
+	 * ENTrackLoaded / ENTrackFailed methods.
+	 * 
+	 * This is a thin adapter over {@link ENNest#loadTrack(String)}.
 	 */
 	@SuppressWarnings("unchecked")
 	public EchoNest(PApplet parent, String ApiKey, String FileName, int Version) {
@@ -102,6 +102,7 @@ public class EchoNest extends Thread {
 		}
 		
 		nest = new ENNest();
+		nest.setup(p, APIKey, analysis_version);
 		start();
 	}
 	
@@ -122,88 +123,74 @@ public class EchoNest extends Thread {
 	    // (note: http://dev.processing.org/bugs/show_bug.cgi?id=183)
 	}
 	
+	/**
+	 * Starts loading the track on this thread, so that sketches can still wait for
+	 * it with join() or isAlive(). To load tracks on the executor of the library
+	 * instead, use {@link ENNest#loadTrackAsync(String)}.
+	 */
 	public void start() {
 		running = true;
 		super.start();
 	}
 	
+	/**
+	 * Returns the segments of the loaded track as {@link ENSegment} objects. They are
+	 * created from the segment store on the first call only.
+	 * 
+	 * @return The segments, or null if no track is loaded.
+	 */
+	public ENSegment[] getSegments() {
+		ENTrack t = track;
+		return t != null ? t.getSegments() : null;
+	}
+	
 	public void run() {
-		nest.setAnalysisVersion(analysis_version);
-		
 		if (fileName!=null) {
-			FileInputStream fis = null;
-			ObjectInputStream in = null;
-			try {
-				String fullPath = p.dataPath(fileName);
-				String h = ENNest.fileHash(fullPath);
-				fis = new FileInputStream("/Library/Application Support/Processing/EchoNest/"+h+".enp5");
-				in = new ObjectInputStream(fis);
-				track = (ENTrack)in.readObject();
-				in.close();
-				System.out.println(">> LOADED ANALYSIS FROM DISK FOR FILE");
-				System.out.println(">> "+fileName);
-				dataLoaded.invoke(p, new Object[] {track});				
-				loaded = true;
-			} catch (IOException e) {
-				nest.init(p, APIKey);
-				retrieveData(fileName);
-			} catch (ClassNotFoundException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (Exception e) {
-				System.err.println("Disabling ENTrackLoaded");
-				e.printStackTrace();
-				dataLoaded = null;
-			}
+			retrieveData(fileName);
 		}
 		running = false;
-		interrupt();
 	}
 	
 	public void retrieveData(String file) {
-		System.out.println(">> CHECKING ANALISYS STATUS");
 		loaded = false;
-		if (nest.uploadFile(file)) {
-			System.out.println(">> NO FILE SAVED, LOADING DATA FROM SERVER");
-			track = nest.initTrack();
-			track.setAnalysisVersion(analysis_version);
-			bars = track.getBars();
-			if (bars == null) {
+		track = nest.loadTrack(file);
+		if (track == null) {
+			if (dataFailed != null) {
 				try {
 					dataFailed.invoke(p, new Object[] {track});
-					interrupt();
 				} catch (Exception ex) {
 					ex.printStackTrace();
 					dataFailed = null;
 				}
-			} else {
-				beats = track.getBeats();
-				duration = track.getDuration();
-				endOfFadeIn = track.getEndOfFadeIn(); 
-				trackKey = track.getKey();
-				loudness = track.getLoudness();
-				metadata = track.getMetadata();
-				mode = track.getMode(); 
-				sections = track.getSections();
-				segments = track.getSegments();
-				startOfFadeOut = track.getStartOfFadeOut();
-				tatums = track.getTatums();
-				tempo = track.getTempo();
-				timeSignature = track.getTimeSignature();
-				track.saveTrackAnalysisToDisk();
-				loaded = true;
-			}		
-			if (dataLoaded != null) {
-				try {
-					dataLoaded.invoke(p, new Object[] {track});
-				} catch (Exception ex) {
-					System.err.println("Disabling ENTrackLoaded");
-					ex.printStackTrace();
-					dataLoaded = null;
-				}
 			}
-		} else {
-			System.err.println("*** ERROR, NO FILE ***");
-		}		
+			return;
+		}
+		if (track instanceof ENMappedTrack) {
+			((ENMappedTrack) track).decodeAll();
+		}
+		bars = track.bars;
+		beats = track.beats;
+		duration = track.duration;
+		endOfFadeIn = track.endOfFadeIn; 
+		trackKey = track.key;
+		loudness = track.loudness;
+		metadata = track.metadata;
+		mode = track.mode; 
+		sections = track.sections;
+		segmentStore = track.getSegmentStore();
+		startOfFadeOut = track.startOfFadeOut;
+		tatums = track.tatums;
+		tempo = track.tempo;
+		timeSignature = track.timeSignature;
+		loaded = true;
+		if (dataLoaded != null) {
+			try {
+				dataLoaded.invoke(p, new Object[] {track});
+			} catch (Exception ex) {
+				System.err.println("Disabling ENTrackLoaded");
+				ex.printStackTrace();
+				dataLoaded = null;
+			}
+		}
 	}
 }
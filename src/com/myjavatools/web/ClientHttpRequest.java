@@ -1,5 +1,6 @@
 package com.myjavatools.web;
 
+import java.net.HttpURLConnection;
 import java.net.URLConnection;
 import java.net.URL;
 import java.io.IOException;
@@ -10,7 +11,11 @@ import java.io.InputStream;
 import java.util.Random;
 import java.io.OutputStream;
 import java.io.FileInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
 
 /**
  * <p>Title: Client HTTP Request class</p>
@@ -26,6 +31,9 @@ public class ClientHttpRequest {
   @SuppressWarnings("unchecked")
   Map cookies = new HashMap();
 
+  // copy buffers shared by all threads, so short-lived threads do not each allocate one
+  private static final ArrayBlockingQueue<byte[]> buffers = new ArrayBlockingQueue<byte[]>(8);
+
   protected void connect() throws IOException {
     if (os == null) os = connection.getOutputStream();
   }
@@ -98,6 +106,19 @@ public class ClientHttpRequest {
   }
 
 
+  /**
+   * sends the request body in chunks as it is written instead of buffering it in memory
+   * until the request is posted. Must be called before adding any parameter.
+   * @param chunkLength the size of the chunks, or 0 for the default size
+   * @throws IllegalStateException if parameters have already been written
+   */
+  public void setChunkedStreamingMode(int chunkLength) {
+    if (os != null) throw new IllegalStateException("Request body already started");
+    if (connection instanceof HttpURLConnection) {
+      ((HttpURLConnection) connection).setChunkedStreamingMode(chunkLength);
+    }
+  }
+
   @SuppressWarnings({ "unused", "unchecked" })
   private void postCookies() {
     StringBuffer cookieList = new StringBuffer();
@@ -170,19 +191,33 @@ public class ClientHttpRequest {
   }
 
   private static void pipe(InputStream in, OutputStream out) throws IOException {
-    byte[] buf = new byte[500000];
-    int nread;
-    @SuppressWarnings("unused")
-	int navailable;
-    int total = 0;
-    synchronized (in) {
-      while((nread = in.read(buf, 0, buf.length)) >= 0) {
-        out.write(buf, 0, nread);
-        total += nread;
+    if (in instanceof FileInputStream) {
+      FileChannel channel = ((FileInputStream) in).getChannel();
+      WritableByteChannel target = Channels.newChannel(out);
+      long position = channel.position();
+      long size = channel.size();
+      while (position < size) {
+        long n = channel.transferTo(position, size - position, target);
+        if (n <= 0) break;
+        position += n;
+      }
+      channel.position(position);
+      out.flush();
+      return;
+    }
+    byte[] buf = buffers.poll();
+    if (buf == null) buf = new byte[64 * 1024];
+    try {
+      int nread;
+      synchronized (in) {
+        while((nread = in.read(buf, 0, buf.length)) >= 0) {
+          out.write(buf, 0, nread);
+        }
       }
+    } finally {
+      buffers.offer(buf);
     }
     out.flush();
-    buf = null;
   }
 
   /**
@@ -216,7 +251,12 @@ public void setParameter(String name, String filename, InputStream is) throws IO
    * @throws IOException
    */
   public void setParameter(String name, File file) throws IOException {
-    setParameter(name, file.getPath(), new FileInputStream(file));
+    FileInputStream in = new FileInputStream(file);
+    try {
+      setParameter(name, file.getPath(), in);
+    } finally {
+      in.close();
+    }
   }
 
   /**